@@ -0,0 +1,215 @@
+package com.dilyar.weather.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Rows per second weather rows are written with, by SQLiteDatabase.insert, by CompiledRowInserter from
+ * ContentValues as bulkInsert does, and by binding WeatherRowBuffer to a compiled statement as saveWeather does.
+ * Every writer inserts the same rows in one transaction into a scratch database. The median of the measured
+ * runs is logged under LOG_TAG, e.g. with "adb logcat -s RowInsertThroughputBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class RowInsertThroughputBenchmark {
+
+    private static final String LOG_TAG = RowInsertThroughputBenchmark.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "insert_benchmark.db";
+    private static final int ROWS = 5000;
+    private static final int WARM_UP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+    private static final long LOCATION_ID = 1;
+
+    private interface RowWriter {
+        void writeRows(SQLiteDatabase db);
+    }
+
+    private Context mContext;
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+
+
+    @Before
+    public void setUp() {
+
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new WeatherDbHelper(mContext, DATABASE_NAME);
+        mDb = mDbHelper.getWritableDatabase();
+    }
+
+
+
+    @After
+    public void tearDown() {
+
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+
+
+    @Test
+    public void databaseInsert() {
+
+        final ContentValues[] rows = buildContentValues();
+        measure("SQLiteDatabase.insert", new RowWriter() {
+
+            @Override
+            public void writeRows(SQLiteDatabase db) {
+
+                for (ContentValues row : rows) {
+                    db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, row);
+                }
+            }
+        });
+    }
+
+
+
+    @Test
+    public void compiledRowInserter() {
+
+        final ContentValues[] rows = buildContentValues();
+        measure("CompiledRowInserter", new RowWriter() {
+
+            @Override
+            public void writeRows(SQLiteDatabase db) {
+
+                CompiledRowInserter inserter = new CompiledRowInserter(db, WeatherContract.WeatherEntry.TABLE_NAME);
+                try {
+                    for (ContentValues row : rows) {
+                        inserter.insert(row);
+                    }
+                } finally {
+                    inserter.close();
+                }
+            }
+        });
+    }
+
+
+
+    @Test
+    public void weatherRowBuffer() {
+
+        final WeatherRowBuffer rows = buildWeatherRowBuffer();
+        final String sql = buildInsertSql();
+        measure("WeatherRowBuffer", new RowWriter() {
+
+            @Override
+            public void writeRows(SQLiteDatabase db) {
+
+                SQLiteStatement statement = db.compileStatement(sql);
+                try {
+                    for (int i = 0; i < rows.size(); i++) {
+                        statement.clearBindings();
+                        statement.bindLong(1, LOCATION_ID);
+                        rows.bindRow(statement, 2, i);
+                        statement.executeInsert();
+                    }
+                } finally {
+                    statement.close();
+                }
+            }
+        });
+    }
+
+
+
+    //Run writer WARM_UP_RUNS + MEASURED_RUNS times on an empty weather table and log the median rows per second.
+    private void measure(String writerName, RowWriter writer) {
+
+        long[] runNanos = new long[MEASURED_RUNS];
+        for (int run = 0; run < WARM_UP_RUNS + MEASURED_RUNS; run++) {
+            mDb.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+
+            long start = System.nanoTime();
+            mDb.beginTransactionNonExclusive();
+            try {
+                writer.writeRows(mDb);
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            assertEquals(ROWS, DatabaseUtils.queryNumEntries(mDb, WeatherContract.WeatherEntry.TABLE_NAME));
+            if (run >= WARM_UP_RUNS) {
+                runNanos[run - WARM_UP_RUNS] = elapsed;
+            }
+        }
+
+        Arrays.sort(runNanos);
+        long medianNanos = runNanos[MEASURED_RUNS / 2];
+        Log.i(LOG_TAG, writerName + ": " + ROWS * 1000000000L / medianNanos + " rows/s, median of "
+                + MEASURED_RUNS + " runs " + medianNanos / 1000000 + "ms for " + ROWS + " rows");
+    }
+
+
+
+    //Rows as the sync writes them, one per day, the descriptions are stored in the condition table
+    private static ContentValues[] buildContentValues() {
+
+        ContentValues[] rows = new ContentValues[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            ContentValues row = new ContentValues();
+            row.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, LOCATION_ID);
+            row.put(WeatherContract.WeatherEntry.COLUMN_DATE, (long) i);
+            row.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_CODE, 800 + i % 5);
+            row.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 10.5 + i % 7);
+            row.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 20.5 + i % 7);
+            row.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, 60.0);
+            row.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, 1013.25);
+            row.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, 3.5);
+            row.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, 180.0);
+            row.put(WeatherContract.WeatherEntry.COLUMN_CURRENT_TEMP, 15.5);
+            row.put(WeatherContract.WeatherEntry.COLUMN_CLOUDINESS, 40.0);
+            rows[i] = row;
+        }
+        return rows;
+    }
+
+
+
+    private static WeatherRowBuffer buildWeatherRowBuffer() {
+
+        WeatherRowBuffer rows = new WeatherRowBuffer();
+        for (int i = 0; i < ROWS; i++) {
+            rows.addRow(i, 800 + i % 5, "Clear", "clear sky", 10.5 + i % 7, 20.5 + i % 7,
+                    60.0, 1013.25, 3.5, 180.0, 15.5, 40.0);
+        }
+        return rows;
+    }
+
+
+
+    //Location key followed by WeatherRowBuffer.COLUMNS, the statement saveWeather compiles
+    private static String buildInsertSql() {
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(WeatherContract.WeatherEntry.TABLE_NAME)
+                .append(" (").append(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        StringBuilder bindArgs = new StringBuilder("?");
+        for (String column : WeatherRowBuffer.COLUMNS) {
+            sql.append(',').append(column);
+            bindArgs.append(",?");
+        }
+        return sql.append(") VALUES (").append(bindArgs).append(')').toString();
+    }
+}
@@ -0,0 +1,284 @@
+package com.dilyar.weather.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How long the reads of the UI take while sync writes, with and without write-ahead logging.
+ * A writer thread rewrites the weather of every city in one transaction per city, the way saveWeather does,
+ * while a reader thread runs the weather query of a city page over and over. Read latencies are logged
+ * under LOG_TAG, e.g. with "adb logcat -s WalContentionBenchmark".
+ *
+ * Without WAL SQLiteDatabase has a connection pool of one, so a read waits for the transaction that holds it.
+ * With WAL the pool has several connections and reads run on their own next to the writing one,
+ * readsDoNotWaitForOpenTransaction checks exactly that.
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = Build.VERSION_CODES.JELLY_BEAN)
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class WalContentionBenchmark {
+
+    private static final String LOG_TAG = WalContentionBenchmark.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "contention_benchmark.db";
+    private static final int CITIES = 20;
+    private static final int DAYS = 15;
+    private static final int WRITE_ROUNDS = 20;
+    private static final long READ_TIMEOUT_SECONDS = 5;
+
+    //The query of a city page, weather of one city from a date on
+    private static final String READ_SQL = "SELECT * FROM " + WeatherContract.WeatherEntry.TABLE_NAME +
+            " INNER JOIN " + WeatherContract.LocationEntry.TABLE_NAME +
+            " ON " + WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
+            " = " + WeatherContract.LocationEntry.TABLE_NAME + "." + WeatherContract.LocationEntry._ID +
+            " WHERE " + WeatherContract.LocationEntry.TABLE_NAME + "." +
+            WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME + " = ? AND " +
+            WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ORDER BY " + WeatherContract.WeatherEntry.COLUMN_DATE;
+
+    private static final String INSERT_SQL = "INSERT INTO " + WeatherContract.WeatherEntry.TABLE_NAME + " (" +
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + "," +
+            WeatherContract.WeatherEntry.COLUMN_DATE + "," +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_CODE + "," +
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + "," +
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + "," +
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY + "," +
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE + "," +
+            WeatherContract.WeatherEntry.COLUMN_CURRENT_TEMP + "," +
+            WeatherContract.WeatherEntry.COLUMN_CLOUDINESS + ") VALUES (?,?,?,?,?,?,?,?,?)";
+
+    private Context mContext;
+    private WeatherDbHelper mDbHelper;
+
+
+
+    @Before
+    public void setUp() {
+
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+
+
+    @After
+    public void tearDown() {
+
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+
+
+    @Test
+    public void readsDoNotWaitForOpenTransaction() throws Exception {
+
+        final SQLiteDatabase db = openDatabase(true);
+        final CountDownLatch transactionOpen = new CountDownLatch(1);
+        final CountDownLatch readDone = new CountDownLatch(1);
+
+        Thread writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                db.beginTransactionNonExclusive();
+                try {
+                    writeCity(db, 1, 1);
+                    transactionOpen.countDown();
+                    //Keep the transaction open until the read is done, or give up after the timeout
+                    readDone.await(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    db.setTransactionSuccessful();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+        writer.start();
+        assertTrue(transactionOpen.await(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        Thread reader = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                readCity(db, 1);
+                readDone.countDown();
+            }
+        });
+        reader.start();
+
+        assertTrue("Read waited for the open write transaction",
+                readDone.await(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        writer.join();
+        reader.join();
+    }
+
+
+
+    @Test
+    public void readLatencyDuringSyncWithWal() throws Exception {
+
+        measureReadsDuringSync(openDatabase(true), "WAL");
+    }
+
+
+
+    @Test
+    public void readLatencyDuringSyncWithoutWal() throws Exception {
+
+        measureReadsDuringSync(openDatabase(false), "rollback journal");
+    }
+
+
+
+    private SQLiteDatabase openDatabase(boolean isWalEnabled) {
+
+        mDbHelper = new WeatherDbHelper(mContext, DATABASE_NAME);
+        mDbHelper.setWriteAheadLoggingEnabled(isWalEnabled);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            for (int city = 1; city <= CITIES; city++) {
+                ContentValues location = new ContentValues();
+                location.put(WeatherContract.LocationEntry._ID, city);
+                location.put(WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME, "city" + city);
+                location.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "City " + city);
+                location.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 0.0);
+                location.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, 0.0);
+                db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, location);
+                writeCity(db, city, 0);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return db;
+    }
+
+
+
+    //Sync every city WRITE_ROUNDS times on one thread while another one reads city pages until sync is done.
+    private void measureReadsDuringSync(final SQLiteDatabase db, String journalMode) throws Exception {
+
+        final AtomicBoolean isSyncing = new AtomicBoolean(true);
+        final List<Long> readNanos = new ArrayList<>();
+
+        Thread reader = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                int city = 1;
+                while (isSyncing.get()) {
+                    long start = System.nanoTime();
+                    readCity(db, city);
+                    readNanos.add(System.nanoTime() - start);
+                    city = city % CITIES + 1;
+                }
+            }
+        });
+
+        long syncStart = System.nanoTime();
+        reader.start();
+        try {
+            for (int round = 1; round <= WRITE_ROUNDS; round++) {
+                for (int city = 1; city <= CITIES; city++) {
+                    db.beginTransactionNonExclusive();
+                    try {
+                        db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Integer.toString(city)});
+                        writeCity(db, city, round);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+            }
+        } finally {
+            isSyncing.set(false);
+            reader.join();
+        }
+        long syncMillis = (System.nanoTime() - syncStart) / 1000000;
+
+        assertTrue("No read ran during sync", !readNanos.isEmpty());
+        Collections.sort(readNanos);
+        Log.i(LOG_TAG, journalMode + ": " + readNanos.size() + " reads during a " + syncMillis + "ms sync of "
+                + CITIES + " cities x " + WRITE_ROUNDS + " rounds. Read ms p50: " + getPercentileMillis(readNanos, 50)
+                + " p90: " + getPercentileMillis(readNanos, 90) + " p99: " + getPercentileMillis(readNanos, 99)
+                + " max: " + getPercentileMillis(readNanos, 100));
+    }
+
+
+
+    //DAYS weather rows of a city, the values change with round so every round writes different rows
+    private static void writeCity(SQLiteDatabase db, int city, int round) {
+
+        SQLiteStatement statement = db.compileStatement(INSERT_SQL);
+        try {
+            for (int day = 0; day < DAYS; day++) {
+                statement.clearBindings();
+                statement.bindLong(1, city);
+                statement.bindLong(2, day);
+                statement.bindLong(3, 800 + (day + round) % 5);
+                statement.bindDouble(4, 10.5 + round);
+                statement.bindDouble(5, 20.5 + round);
+                statement.bindDouble(6, 60);
+                statement.bindDouble(7, 1013.25);
+                statement.bindDouble(8, 15.5 + round);
+                statement.bindDouble(9, 40);
+                statement.executeInsert();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+
+
+    private static void readCity(SQLiteDatabase db, int city) {
+
+        Cursor cursor = db.rawQuery(READ_SQL, new String[]{"city" + city, "0"});
+        try {
+            //The query only runs once the cursor fills its window
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+
+    private static double getPercentileMillis(List<Long> sortedNanos, int percentile) {
+
+        int index = Math.min(sortedNanos.size() - 1, sortedNanos.size() * percentile / 100);
+        return sortedNanos.get(index) / 1000000.0;
+    }
+}
@@ -21,7 +21,6 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.widget.SwipeRefreshLayout;
 import android.util.Log;
@@ -35,6 +34,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.dilyar.weather.app.adapter.ForecastAdapter;
+import com.dilyar.weather.app.data.ThrottledCursorLoader;
 import com.dilyar.weather.app.data.WeatherContract;
 import com.dilyar.weather.app.sync.SunshineSyncAdapter;
 import com.dilyar.weather.app.utility.ImageLoader;
@@ -170,7 +170,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                 if (mInputLocationName != null) {
                     Log.d(LOG_TAG, "Start refreshing: " + mInputLocationName);
                     Utility.setUpdatedManually(getActivity(), true);
-                    SunshineSyncAdapter.syncImmediatelyWithLocationName(getActivity(), mInputLocationName);
+                    //Pulling to refresh always asks for new data
+                    SunshineSyncAdapter.syncImmediatelyWithLocationName(getActivity(), mInputLocationName, true);
                 }
             }
         });
@@ -302,23 +303,25 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                         .buildWeatherLocationWithDateInQueryParameter(mInputLocationName, System.currentTimeMillis());
 
                 Log.d(LOG_TAG, "Create Weather loader uri: " + weatherUriWithLocationAndStartDate);
-                return new CursorLoader(getActivity(),
+                return new ThrottledCursorLoader(getActivity(),
                         weatherUriWithLocationAndStartDate,
                         FORECAST_COLUMNS,
                         null,
                         null,
-                        sortOrder);
+                        sortOrder,
+                        Utility.getLoaderUpdateThrottleMillis(getActivity()));
 
             case PHOTO_LOADER:
                 Uri photoUriWithLocation = WeatherContract.PhotoEntry.buildPhotoUriWithLocation(mInputLocationName);
                 Log.d(LOG_TAG, "Create Photo loader uri: " + photoUriWithLocation);
 
-                return new CursorLoader(getActivity(),
+                return new ThrottledCursorLoader(getActivity(),
                         photoUriWithLocation,
                         PHOTO_COLUMNS,
                         null,
                         null,
-                        null
+                        null,
+                        Utility.getLoaderUpdateThrottleMillis(getActivity())
                 );
 
             default:
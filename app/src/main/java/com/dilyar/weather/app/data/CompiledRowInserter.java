@@ -0,0 +1,172 @@
+package com.dilyar.weather.app.data;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Inserts many rows into one table with compiled INSERT statements, instead of having SQLiteDatabase.insert
+ * build and compile a new statement for every row. Values are bound by their type, longs and doubles
+ * are unwrapped and bound without going through strings.
+ * One statement is compiled per set of columns, so today and future rows can be mixed. The set of columns
+ * of a row is matched against the compiled ones by lookups of their names, nothing is allocated per row.
+ * Use it on one thread, inside a transaction, and close it before the transaction ends.
+ */
+class CompiledRowInserter {
+
+    private static final String LOG_TAG = CompiledRowInserter.class.getSimpleName();
+
+    private final SQLiteDatabase mDb;
+    private final String mTable;
+    //Columns of the values that are not written to the table, e.g. stored somewhere else by the caller
+    private final String[] mSkippedColumns;
+
+    //Compiled statements, the one used last comes first
+    private final List<Layout> mLayouts = new ArrayList<>();
+
+    //A compiled statement and its columns in binding order
+    private static class Layout {
+        final String[] columns;
+        final SQLiteStatement statement;
+
+        Layout(String[] columns, SQLiteStatement statement) {
+            this.columns = columns;
+            this.statement = statement;
+        }
+    }
+
+
+
+    CompiledRowInserter(SQLiteDatabase db, String table, String... skippedColumns) {
+
+        mDb = db;
+        mTable = table;
+        mSkippedColumns = skippedColumns;
+    }
+
+
+
+    /**
+     * @return the row id of the new row, or -1 if it could not be inserted, the same as SQLiteDatabase.insert.
+     */
+    long insert(ContentValues values) {
+
+        Layout layout = findLayout(values);
+        if (layout == null) {
+            layout = compile(values);
+        }
+
+        SQLiteStatement statement = layout.statement;
+        String[] columns = layout.columns;
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            bind(statement, i + 1, values.get(columns[i]));
+        }
+
+        try {
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting " + values + " into " + mTable, e);
+            return -1;
+        }
+    }
+
+
+
+    void close() {
+
+        for (Layout layout : mLayouts) {
+            layout.statement.close();
+        }
+        mLayouts.clear();
+    }
+
+
+
+    //The compiled layout with exactly the written columns of values, or null. The one found is moved to the front.
+    private Layout findLayout(ContentValues values) {
+
+        int writtenColumnCount = values.size();
+        for (String skippedColumn : mSkippedColumns) {
+            if (values.containsKey(skippedColumn)) {
+                writtenColumnCount--;
+            }
+        }
+
+        for (int i = 0; i < mLayouts.size(); i++) {
+            Layout layout = mLayouts.get(i);
+            if (layout.columns.length == writtenColumnCount && containsAll(values, layout.columns)) {
+                if (i > 0) {
+                    mLayouts.remove(i);
+                    mLayouts.add(0, layout);
+                }
+                return layout;
+            }
+        }
+        return null;
+    }
+
+
+
+    private Layout compile(ContentValues values) {
+
+        TreeSet<String> columnSet = new TreeSet<>(values.keySet());
+        for (String skippedColumn : mSkippedColumns) {
+            columnSet.remove(skippedColumn);
+        }
+        String[] columns = columnSet.toArray(new String[columnSet.size()]);
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(mTable).append(" (");
+        StringBuilder bindArgs = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(',');
+                bindArgs.append(',');
+            }
+            sql.append(columns[i]);
+            bindArgs.append('?');
+        }
+        sql.append(") VALUES (").append(bindArgs).append(')');
+
+        Layout layout = new Layout(columns, mDb.compileStatement(sql.toString()));
+        mLayouts.add(0, layout);
+        return layout;
+    }
+
+
+
+    private static boolean containsAll(ContentValues values, String[] columns) {
+
+        for (String column : columns) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+
+    private static void bind(SQLiteStatement statement, int index, Object value) {
+
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+}
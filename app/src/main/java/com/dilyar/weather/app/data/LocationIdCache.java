@@ -0,0 +1,63 @@
+package com.dilyar.weather.app.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of input location name -> _ID of the location table, so syncing a city does not
+ * query the location table every time. WeatherProvider writes new locations through it and clears it
+ * once a delete or change of locations it can't follow is committed.
+ */
+class LocationIdCache {
+
+    private static final Map<String, Long> sLocationIds = new HashMap<>();
+
+    //Changes with every invalidation, so an id read from the database before it is not cached after it
+    private static long sGeneration;
+
+
+
+    /**
+     * @return the cached id of this location, or 0 if it is not cached.
+     */
+    static synchronized long get(String inputLocationName) {
+
+        Long locationId = sLocationIds.get(inputLocationName);
+        return locationId != null ? locationId : 0;
+    }
+
+
+
+    static synchronized long getGeneration() {
+
+        return sGeneration;
+    }
+
+
+
+    //Cache an id that was read from the database, unless the cache was invalidated since generation.
+    static synchronized void putIfCurrent(String inputLocationName, long locationId, long generation) {
+
+        if (generation == sGeneration && locationId > 0) {
+            sLocationIds.put(inputLocationName, locationId);
+        }
+    }
+
+
+
+    //Cache the id of a location that was just inserted and committed.
+    static synchronized void put(String inputLocationName, long locationId) {
+
+        if (inputLocationName != null && locationId > 0) {
+            sLocationIds.put(inputLocationName, locationId);
+        }
+    }
+
+
+
+    static synchronized void invalidate() {
+
+        sLocationIds.clear();
+        sGeneration++;
+    }
+}
@@ -0,0 +1,262 @@
+package com.dilyar.weather.app.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Results of WeatherProvider queries kept in memory, so the same query of a city is answered without
+ * going to the database until something of that city is written. Results are grouped by the uri their
+ * changes are notified on, and a notification of that uri drops its group. The least recently used results
+ * are dropped once the estimated size of all of them goes over MAX_BYTES.
+ * Hits and misses are counted in SyncMetrics, so they can be read through MetricsEntry.COUNTERS_URI.
+ */
+class QueryCache {
+
+    private static final int MAX_BYTES = 256 * 1024;
+
+    //Rough heap cost of the objects of a row, on top of their content
+    private static final int ROW_OVERHEAD_BYTES = 32;
+    private static final int CELL_OVERHEAD_BYTES = 16;
+
+    private final LruCache<String, Result> mResults = new LruCache<String, Result>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(String key, Result result) {
+
+            return result.bytes;
+        }
+
+
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Result oldResult, Result newResult) {
+
+            if (newResult == null) {
+                removeFromGroup(oldResult.group, key);
+            }
+        }
+    };
+
+    //Notification uri -> keys of the results cached for it
+    private final Map<Uri, Set<String>> mGroups = new HashMap<>();
+
+    //Changes with every invalidation, so a result read from the database before it is not cached after it
+    private long mGeneration;
+
+    //Rows of one query, copied out of its cursor
+    private static class Result {
+        final String[] columns;
+        final Object[][] rows;
+        final Uri group;
+        final int bytes;
+
+        Result(String[] columns, Object[][] rows, Uri group, int bytes) {
+            this.columns = columns;
+            this.rows = rows;
+            this.group = group;
+            this.bytes = bytes;
+        }
+    }
+
+
+
+    static String buildKey(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                           String sortOrder) {
+
+        return uri + "|" + Arrays.toString(projection) + "|" + selection + "|" + Arrays.toString(selectionArgs)
+                + "|" + sortOrder;
+    }
+
+
+
+    /**
+     * @return a new cursor over the cached result of key, or null if it is not cached.
+     */
+    synchronized Cursor get(String key) {
+
+        Result result = mResults.get(key);
+        if (result == null) {
+            SyncMetrics.increment(SyncMetrics.COUNTER_QUERY_CACHE_MISSES);
+            return null;
+        }
+        SyncMetrics.increment(SyncMetrics.COUNTER_QUERY_CACHE_HITS);
+        MatrixCursor cursor = new MatrixCursor(result.columns, result.rows.length);
+        for (Object[] row : result.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+
+
+    synchronized long getGeneration() {
+
+        return mGeneration;
+    }
+
+
+
+    /**
+     * Copy the rows of cursor, and cache them unless the cache was invalidated since generation.
+     * cursor is closed.
+     *
+     * @return a new cursor over the copied rows.
+     */
+    Cursor put(String key, Uri group, Cursor cursor, long generation) {
+
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        int bytes = ROW_OVERHEAD_BYTES;
+        try {
+            int row = 0;
+            while (cursor.moveToNext()) {
+                rows[row] = readRow(cursor, columns.length);
+                bytes += getBytes(rows[row]);
+                row++;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Result result = new Result(columns, rows, group, bytes);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                Set<String> keys = mGroups.get(group);
+                if (keys == null) {
+                    keys = new HashSet<>();
+                    mGroups.put(group, keys);
+                }
+                keys.add(key);
+                //A result bigger than the whole cache is evicted right away, which takes it out of its group again
+                mResults.put(key, result);
+            }
+        }
+
+        MatrixCursor copy = new MatrixCursor(columns, rows.length);
+        for (Object[] values : rows) {
+            copy.addRow(values);
+        }
+        return copy;
+    }
+
+
+
+    /**
+     * Drop the results notified on uri. The uri of the weather or photo table drops the results of every
+     * city of that table. Any other uri drops nothing, e.g. a change of the location table is notified
+     * on the cities it changes as well.
+     */
+    synchronized void invalidate(Uri uri) {
+
+        mGeneration++;
+        if (isGroupUri(uri)) {
+            Set<String> keys = mGroups.remove(uri);
+            if (keys != null) {
+                for (String key : keys) {
+                    mResults.remove(key);
+                }
+            }
+        } else if (isTableUri(uri)) {
+            String table = uri.getPathSegments().get(0);
+            Iterator<Map.Entry<Uri, Set<String>>> groups = mGroups.entrySet().iterator();
+            while (groups.hasNext()) {
+                Map.Entry<Uri, Set<String>> group = groups.next();
+                if (table.equals(group.getKey().getPathSegments().get(0))) {
+                    //Removed from the map first, so removing its results does not change the map under the iterator
+                    groups.remove();
+                    for (String key : group.getValue()) {
+                        mResults.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+
+
+    //Called by mResults when a result is evicted or removed, always under the lock of this cache
+    private void removeFromGroup(Uri group, String key) {
+
+        Set<String> keys = mGroups.get(group);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                mGroups.remove(group);
+            }
+        }
+    }
+
+
+
+    //Uris of one city, the results of other cities don't depend on them
+    private static boolean isGroupUri(Uri uri) {
+
+        return uri.getPathSegments().size() == 2 && isCachedTable(uri.getPathSegments().get(0));
+    }
+
+
+
+    private static boolean isTableUri(Uri uri) {
+
+        return uri.getPathSegments().size() == 1 && isCachedTable(uri.getPathSegments().get(0));
+    }
+
+
+
+    private static boolean isCachedTable(String table) {
+
+        return table.equals(WeatherContract.PATH_WEATHER) || table.equals(WeatherContract.PATH_PHOTO);
+    }
+
+
+
+    private static Object[] readRow(Cursor cursor, int columnCount) {
+
+        Object[] row = new Object[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    row[i] = cursor.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    row[i] = null;
+                    break;
+            }
+        }
+        return row;
+    }
+
+
+
+    private static int getBytes(Object[] row) {
+
+        int bytes = ROW_OVERHEAD_BYTES + 4 * row.length;
+        for (Object value : row) {
+            if (value instanceof String) {
+                bytes += CELL_OVERHEAD_BYTES + 2 * ((String) value).length();
+            } else if (value instanceof byte[]) {
+                bytes += CELL_OVERHEAD_BYTES + ((byte[]) value).length;
+            } else if (value != null) {
+                bytes += CELL_OVERHEAD_BYTES;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,324 @@
+package com.dilyar.weather.app.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rolling timings of the phases of a city sync, kept in memory for the last WINDOW_SIZE samples of each phase,
+ * and counters of the work the app avoided since the process started.
+ * They are read through WeatherContract.MetricsEntry.
+ */
+public class SyncMetrics {
+
+    public static final String PHASE_CONNECT = "connect";
+    public static final String PHASE_DOWNLOAD = "download";
+    public static final String PHASE_PARSE = "parse";
+    public static final String PHASE_DB_WRITE = "db_write";
+    public static final String PHASE_NOTIFICATION = "notification";
+
+    private static final String[] PHASES = {
+            PHASE_CONNECT, PHASE_DOWNLOAD, PHASE_PARSE, PHASE_DB_WRITE, PHASE_NOTIFICATION};
+
+    //Change notifications of the pages, and the reloads they got. The difference is reloads avoided.
+    public static final String COUNTER_RELOADS_REQUESTED = "reloads_requested";
+    public static final String COUNTER_RELOADS_RUN = "reloads_run";
+    public static final String COUNTER_RELOADS_AVOIDED = "reloads_avoided";
+
+    //Queries of WeatherProvider answered from its QueryCache, and those that had to go to the database
+    public static final String COUNTER_QUERY_CACHE_HITS = "query_cache_hits";
+    public static final String COUNTER_QUERY_CACHE_MISSES = "query_cache_misses";
+
+    //City sync requests and syncs left to a sync of the same city, see CitySyncRequestCoalescer
+    public static final String COUNTER_SYNCS_COALESCED = "syncs_coalesced";
+
+    private static final String[] COUNTERS = {
+            COUNTER_RELOADS_REQUESTED, COUNTER_RELOADS_RUN, COUNTER_RELOADS_AVOIDED,
+            COUNTER_QUERY_CACHE_HITS, COUNTER_QUERY_CACHE_MISSES, COUNTER_SYNCS_COALESCED};
+
+    //Upper bounds of the histogram buckets, the last one takes everything slower
+    private static final long[] BUCKET_UPPER_MILLIS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, Long.MAX_VALUE};
+
+    private static final int WINDOW_SIZE = 256;
+
+    private static final Map<String, Phase> sPhases = new HashMap<>();
+    private static final Map<String, AtomicLong> sCounters = new HashMap<>();
+
+    static {
+        for (String phase : PHASES) {
+            sPhases.put(phase, new Phase());
+        }
+        for (String counter : COUNTERS) {
+            sCounters.put(counter, new AtomicLong());
+        }
+    }
+
+    //Last WINDOW_SIZE samples of one phase
+    private static class Phase {
+        final long[] millis = new long[WINDOW_SIZE];
+        final long[] bytes = new long[WINDOW_SIZE];
+        int next;
+        int count;
+    }
+
+
+
+    public static void record(String phase, long millis, long bytes) {
+
+        Phase samples = sPhases.get(phase);
+        if (samples == null) {
+            throw new IllegalArgumentException("Unknown sync phase: " + phase);
+        }
+        synchronized (samples) {
+            samples.millis[samples.next] = millis;
+            samples.bytes[samples.next] = bytes;
+            samples.next = (samples.next + 1) % WINDOW_SIZE;
+            samples.count = Math.min(samples.count + 1, WINDOW_SIZE);
+        }
+    }
+
+
+
+    public static void increment(String counter) {
+
+        AtomicLong count = sCounters.get(counter);
+        if (count == null || counter.equals(COUNTER_RELOADS_AVOIDED)) {
+            throw new IllegalArgumentException("Unknown counter: " + counter);
+        }
+        count.incrementAndGet();
+    }
+
+
+
+    public static long getCount(String counter) {
+
+        if (counter.equals(COUNTER_RELOADS_AVOIDED)) {
+            return Math.max(0, getCount(COUNTER_RELOADS_REQUESTED) - getCount(COUNTER_RELOADS_RUN));
+        }
+        AtomicLong count = sCounters.get(counter);
+        if (count == null) {
+            throw new IllegalArgumentException("Unknown counter: " + counter);
+        }
+        return count.get();
+    }
+
+
+
+    //Record the download and the parse of a response, which overlap when it is parsed while it is downloaded.
+    public static void recordResponse(MeteredInputStream inputStream, long parseAndDownloadMillis) {
+
+        long downloadMillis = inputStream.getReadMillis();
+        record(PHASE_DOWNLOAD, downloadMillis, inputStream.getByteCount());
+        record(PHASE_PARSE, Math.max(0, parseAndDownloadMillis - downloadMillis), 0);
+    }
+
+
+
+    /**
+     * One row per phase with the columns of WeatherContract.MetricsEntry asked for in projection,
+     * or all of them if projection is null.
+     */
+    static Cursor buildSummaryCursor(String[] projection) {
+
+        String[] columns = projection != null ? projection : new String[]{
+                WeatherContract.MetricsEntry._ID,
+                WeatherContract.MetricsEntry.COLUMN_PHASE,
+                WeatherContract.MetricsEntry.COLUMN_SAMPLES,
+                WeatherContract.MetricsEntry.COLUMN_TOTAL_MILLIS,
+                WeatherContract.MetricsEntry.COLUMN_P50_MILLIS,
+                WeatherContract.MetricsEntry.COLUMN_P90_MILLIS,
+                WeatherContract.MetricsEntry.COLUMN_P99_MILLIS,
+                WeatherContract.MetricsEntry.COLUMN_MAX_MILLIS,
+                WeatherContract.MetricsEntry.COLUMN_TOTAL_BYTES};
+        MatrixCursor cursor = new MatrixCursor(columns, PHASES.length);
+
+        for (int i = 0; i < PHASES.length; i++) {
+            long[][] samples = getSamples(PHASES[i]);
+            long[] millis = samples[0];
+            long totalMillis = 0;
+            long totalBytes = 0;
+            for (int j = 0; j < millis.length; j++) {
+                totalMillis += millis[j];
+                totalBytes += samples[1][j];
+            }
+            Arrays.sort(millis);
+
+            Map<String, Object> row = new HashMap<>();
+            row.put(WeatherContract.MetricsEntry._ID, i);
+            row.put(WeatherContract.MetricsEntry.COLUMN_PHASE, PHASES[i]);
+            row.put(WeatherContract.MetricsEntry.COLUMN_SAMPLES, millis.length);
+            row.put(WeatherContract.MetricsEntry.COLUMN_TOTAL_MILLIS, totalMillis);
+            row.put(WeatherContract.MetricsEntry.COLUMN_P50_MILLIS, getPercentile(millis, 50));
+            row.put(WeatherContract.MetricsEntry.COLUMN_P90_MILLIS, getPercentile(millis, 90));
+            row.put(WeatherContract.MetricsEntry.COLUMN_P99_MILLIS, getPercentile(millis, 99));
+            row.put(WeatherContract.MetricsEntry.COLUMN_MAX_MILLIS, millis.length > 0 ? millis[millis.length - 1] : 0);
+            row.put(WeatherContract.MetricsEntry.COLUMN_TOTAL_BYTES, totalBytes);
+            cursor.addRow(toRow(columns, row));
+        }
+        return cursor;
+    }
+
+
+
+    /**
+     * One row per counter with the columns of WeatherContract.MetricsEntry asked for in projection,
+     * or all of them if projection is null.
+     */
+    static Cursor buildCountersCursor(String[] projection) {
+
+        String[] columns = projection != null ? projection : new String[]{
+                WeatherContract.MetricsEntry._ID,
+                WeatherContract.MetricsEntry.COLUMN_COUNTER,
+                WeatherContract.MetricsEntry.COLUMN_COUNT};
+        MatrixCursor cursor = new MatrixCursor(columns, COUNTERS.length);
+
+        for (int i = 0; i < COUNTERS.length; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put(WeatherContract.MetricsEntry._ID, i);
+            row.put(WeatherContract.MetricsEntry.COLUMN_COUNTER, COUNTERS[i]);
+            row.put(WeatherContract.MetricsEntry.COLUMN_COUNT, getCount(COUNTERS[i]));
+            cursor.addRow(toRow(columns, row));
+        }
+        return cursor;
+    }
+
+
+
+    /**
+     * One row per histogram bucket of phase, or null if there is no such phase.
+     */
+    static Cursor buildHistogramCursor(String phase, String[] projection) {
+
+        if (!sPhases.containsKey(phase)) {
+            return null;
+        }
+        String[] columns = projection != null ? projection : new String[]{
+                WeatherContract.MetricsEntry._ID,
+                WeatherContract.MetricsEntry.COLUMN_PHASE,
+                WeatherContract.MetricsEntry.COLUMN_BUCKET_UPPER_MILLIS,
+                WeatherContract.MetricsEntry.COLUMN_SAMPLES};
+        MatrixCursor cursor = new MatrixCursor(columns, BUCKET_UPPER_MILLIS.length);
+
+        int[] bucketCounts = new int[BUCKET_UPPER_MILLIS.length];
+        for (long millis : getSamples(phase)[0]) {
+            int bucket = 0;
+            while (millis > BUCKET_UPPER_MILLIS[bucket]) {
+                bucket++;
+            }
+            bucketCounts[bucket]++;
+        }
+
+        for (int i = 0; i < BUCKET_UPPER_MILLIS.length; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put(WeatherContract.MetricsEntry._ID, i);
+            row.put(WeatherContract.MetricsEntry.COLUMN_PHASE, phase);
+            row.put(WeatherContract.MetricsEntry.COLUMN_BUCKET_UPPER_MILLIS, BUCKET_UPPER_MILLIS[i]);
+            row.put(WeatherContract.MetricsEntry.COLUMN_SAMPLES, bucketCounts[i]);
+            cursor.addRow(toRow(columns, row));
+        }
+        return cursor;
+    }
+
+
+
+    //Copy of the {millis, bytes} samples currently in the window of phase
+    private static long[][] getSamples(String phase) {
+
+        Phase samples = sPhases.get(phase);
+        synchronized (samples) {
+            return new long[][]{
+                    Arrays.copyOf(samples.millis, samples.count),
+                    Arrays.copyOf(samples.bytes, samples.count)};
+        }
+    }
+
+
+
+    private static long getPercentile(long[] sortedMillis, int percentile) {
+
+        if (sortedMillis.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedMillis.length) - 1;
+        return sortedMillis[Math.max(0, index)];
+    }
+
+
+
+    private static Object[] toRow(String[] columns, Map<String, Object> values) {
+
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            row[i] = values.get(columns[i]);
+        }
+        return row;
+    }
+
+
+
+    /**
+     * Counts the bytes of a response and the time spent waiting for them.
+     */
+    public static class MeteredInputStream extends FilterInputStream {
+
+        private long mByteCount;
+        private long mReadMillis;
+
+
+
+        public MeteredInputStream(InputStream in) {
+
+            super(in);
+        }
+
+
+
+        @Override
+        public int read() throws IOException {
+
+            long start = SystemClock.elapsedRealtime();
+            int result = super.read();
+            mReadMillis += SystemClock.elapsedRealtime() - start;
+            if (result != -1) {
+                mByteCount++;
+            }
+            return result;
+        }
+
+
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+
+            long start = SystemClock.elapsedRealtime();
+            int result = super.read(buffer, offset, count);
+            mReadMillis += SystemClock.elapsedRealtime() - start;
+            if (result > 0) {
+                mByteCount += result;
+            }
+            return result;
+        }
+
+
+
+        public long getByteCount() {
+
+            return mByteCount;
+        }
+
+
+
+        public long getReadMillis() {
+
+            return mReadMillis;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.dilyar.weather.app.data;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.support.v4.content.CursorLoader;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * CursorLoader that reloads at most once per throttle window when its uri is notified, so a sync that
+ * writes a city many times reloads the page of that city once per window instead of once per write.
+ * Changes that arrive inside the window are never lost, the reload after them is only delayed, and it runs
+ * right away once the sync adapter notifies WeatherContract.SYNC_FINISHED_URI.
+ * Reloads requested, run and avoided are counted in SyncMetrics and read through MetricsEntry.COUNTERS_URI.
+ */
+public class ThrottledCursorLoader extends CursorLoader {
+
+    private static final String LOG_TAG = ThrottledCursorLoader.class.getSimpleName();
+
+    private final long mUpdateThrottleMillis;
+
+    //Set by a change notification, cleared by the load that picks the change up
+    private final AtomicBoolean mReloadPending = new AtomicBoolean();
+
+    private final ContentObserver mSyncFinishedObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+
+            flushPendingReload();
+        }
+    };
+    private boolean mIsObservingSync;
+
+
+
+    public ThrottledCursorLoader(Context context, Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder, long updateThrottleMillis) {
+
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+        mUpdateThrottleMillis = updateThrottleMillis;
+        setUpdateThrottle(updateThrottleMillis);
+    }
+
+
+
+    @Override
+    public void onContentChanged() {
+
+        SyncMetrics.increment(SyncMetrics.COUNTER_RELOADS_REQUESTED);
+        mReloadPending.set(true);
+        super.onContentChanged();
+    }
+
+
+
+    @Override
+    public Cursor loadInBackground() {
+
+        if (mReloadPending.getAndSet(false)) {
+            SyncMetrics.increment(SyncMetrics.COUNTER_RELOADS_RUN);
+        }
+        return super.loadInBackground();
+    }
+
+
+
+    @Override
+    protected void onStartLoading() {
+
+        if (!mIsObservingSync) {
+            getContext().getContentResolver().registerContentObserver(
+                    WeatherContract.SYNC_FINISHED_URI, false, mSyncFinishedObserver);
+            mIsObservingSync = true;
+        }
+        super.onStartLoading();
+    }
+
+
+
+    @Override
+    protected void onReset() {
+
+        super.onReset();
+        if (mIsObservingSync) {
+            getContext().getContentResolver().unregisterContentObserver(mSyncFinishedObserver);
+            mIsObservingSync = false;
+        }
+    }
+
+
+
+    //Run a reload that waits for the throttle window now, because no more changes are coming.
+    private void flushPendingReload() {
+
+        if (!isStarted() || !mReloadPending.get()) {
+            return;
+        }
+        Log.d(LOG_TAG, "Sync finished, reload " + getUri() + " now. Reloads avoided so far: "
+                + SyncMetrics.getCount(SyncMetrics.COUNTER_RELOADS_AVOIDED));
+        setUpdateThrottle(0);
+        forceLoad();
+        setUpdateThrottle(mUpdateThrottleMillis);
+    }
+}
@@ -21,7 +21,10 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.text.format.Time;
+
+import com.dilyar.weather.core.WeatherDates;
+
+import java.util.TimeZone;
 
 /**
  * Defines table and column names for the weather database.
@@ -46,35 +49,30 @@ public class WeatherContract {
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
     public static final String PATH_PHOTO = "photo";
+    public static final String PATH_METRICS = "metrics";
+    public static final String PATH_CURRENT_CONDITIONS = "current";
+    public static final String PATH_SYNC_FINISHED = "sync_finished";
+
+    // Not served by the provider, the sync adapter notifies it when a sync ends so throttled loaders
+    // reload right away. It is not under weather or photo, so their observers don't hear it.
+    public static final Uri SYNC_FINISHED_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_FINISHED).build();
 
     // To make it easy to query for the exact date, we normalize all dates that go into
-    // the database to the start of the the Julian day at UTC.
+    // the database to the start of the local day.
     public static long getJulianDate(long date) {
-        // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(date);
-        int julianDay = Time.getJulianDay(date, time.gmtoff);
-        return time.setJulianDay(julianDay);
+        return WeatherDates.getStartOfDay(date, 0, TimeZone.getDefault());
     }
 
 
 
     public static long getPreviousJulianDate(long date) {
-        // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(date);
-        int julianDay = Time.getJulianDay(date, time.gmtoff);
-        return time.setJulianDay(julianDay - 1);
-
+        return WeatherDates.getStartOfDay(date, -1, TimeZone.getDefault());
     }
 
 
 
     public static long getNextNumberNJulianDate(long date, int n) {
-        Time time = new Time();
-        time.set(date);
-        int julianDay = Time.getJulianDay(date, time.gmtoff);
-        return time.setJulianDay(julianDay + n);
+        return WeatherDates.getStartOfDay(date, n, TimeZone.getDefault());
     }
 
 
@@ -147,6 +145,16 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // OWM's own id of the city, so the current weather of several cities can be fetched
+        // with one "group" request.
+        public static final String COLUMN_OWM_CITY_ID = "owm_city_id";
+
+        // Time in millis the daily forecast of this location was last saved.
+        public static final String COLUMN_FORECAST_SYNCED = "forecast_synced";
+
+        // Time in millis the current weather of this location was last saved or confirmed unchanged.
+        public static final String COLUMN_LAST_SYNCED = "last_synced";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -155,6 +163,12 @@ public class WeatherContract {
 
         public static long getInputLocationId(Context context, String inputLocationName) {
 
+            long cachedLocationId = LocationIdCache.get(inputLocationName);
+            if (cachedLocationId != 0) {
+                return cachedLocationId;
+            }
+            long cacheGeneration = LocationIdCache.getGeneration();
+
             // First, check if the location with this city name exists in the db
             Cursor locationCursor = context.getContentResolver().query(
                     WeatherContract.LocationEntry.CONTENT_URI,
@@ -167,12 +181,38 @@ public class WeatherContract {
                 int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
                 long locationId = locationCursor.getLong(locationIdIndex);
                 locationCursor.close();
+                LocationIdCache.putIfCurrent(inputLocationName, locationId, cacheGeneration);
                 return locationId;
             } else {
                 locationCursor.close();
                 return 0;
             }
         }
+
+
+
+        //Returns {lat, lon} saved for this location, or null if the location is not resolved yet.
+        public static double[] getInputLocationCoordinates(Context context, String inputLocationName) {
+
+            Cursor locationCursor = context.getContentResolver().query(
+                    WeatherContract.LocationEntry.CONTENT_URI,
+                    new String[]{WeatherContract.LocationEntry.COLUMN_COORD_LAT, WeatherContract.LocationEntry.COLUMN_COORD_LONG},
+                    WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME + " = ?",
+                    new String[]{inputLocationName},
+                    null);
+
+            if (locationCursor == null) {
+                return null;
+            }
+            try {
+                if (locationCursor.moveToFirst() && !locationCursor.isNull(0) && !locationCursor.isNull(1)) {
+                    return new double[]{locationCursor.getDouble(0), locationCursor.getDouble(1)};
+                }
+                return null;
+            } finally {
+                locationCursor.close();
+            }
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -199,7 +239,9 @@ public class WeatherContract {
 
         // Short description and long description of the weather, as provided by API.
         // e.g "clear" vs "sky is clear".
-        public static final String COLUMN_SHORT_DESC = "short_desc";
+        // They are stored once per weather code in the condition table, weather queries join them in by code
+        // and weather inserts may still carry them.
+        public static final String COLUMN_SHORT_DESC = ConditionEntry.COLUMN_SHORT_DESC;
 
         // Min, and Max temperatures for the day (stored as floats)
         public static final String COLUMN_MIN_TEMP = "min";
@@ -223,8 +265,10 @@ public class WeatherContract {
         //Cloudiness is stored as a float representing percentage
         public static final String COLUMN_CLOUDINESS = "cloudiness";
 
-        //Long Description is stored as a string
-        public static final String COLUMN_LONG_DESC = "long_desc";
+        //Long Description, stored in the condition table like the short one
+        public static final String COLUMN_LONG_DESC = ConditionEntry.COLUMN_LONG_DESC;
+
+        private static final String PARAM_UNCHANGED = "unchanged";
 
 
         public static Uri buildWeatherUri(long id) {
@@ -233,6 +277,24 @@ public class WeatherContract {
 
 
 
+        //Inserted weather that was stored already gets this uri back, nothing was written
+        public static Uri buildUnchangedWeatherUri(long id) {
+            return buildWeatherUri(id).buildUpon().appendQueryParameter(PARAM_UNCHANGED, "true").build();
+        }
+
+
+
+        public static boolean isUnchangedWeatherUri(Uri uri) {
+            return uri != null && uri.getQueryParameter(PARAM_UNCHANGED) != null;
+        }
+
+
+
+        //Weather of one location, changes of that location are notified on it
+        public static Uri buildWeatherLocation(String inputLocationName) {
+            return CONTENT_URI.buildUpon().appendPath(inputLocationName).build();
+        }
+
         public static Uri buildWeatherLocationWithDateInQueryParameter(String locationName, long startDate) {
             long normalizedDate = getJulianDate(startDate);
             return CONTENT_URI.buildUpon().appendPath(locationName)
@@ -261,4 +323,103 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the condition table, the descriptions of each weather code */
+    public static final class ConditionEntry {
+
+        public static final String TABLE_NAME = "weather_condition";
+
+        // Primary key, the same name as in the weather table, so the tables are joined with USING
+        public static final String COLUMN_WEATHER_CODE = "weather_code";
+
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+        public static final String COLUMN_LONG_DESC = "long_desc";
+    }
+
+    /*
+     * Inner class that defines the table contents of the current conditions table, today's weather of every city
+     * copied together with its location. WeatherProvider keeps it in step with the weather table in the same
+     * transactions, so a reader gets it by the name of the city without joining the two.
+     */
+    public static final class CurrentConditionsEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_CURRENT_CONDITIONS).build();
+
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CURRENT_CONDITIONS;
+
+        public static final String TABLE_NAME = "current_conditions";
+
+        // Primary key, the same name as in the location table
+        public static final String COLUMN_INPUT_LOCATION_NAME = LocationEntry.COLUMN_INPUT_LOCATION_NAME;
+
+        // The columns below have the same names and values as in the location and weather tables
+        public static final String COLUMN_LOC_KEY = WeatherEntry.COLUMN_LOC_KEY;
+        public static final String COLUMN_CITY_NAME = LocationEntry.COLUMN_CITY_NAME;
+        // Day the row was today, a row of an earlier day is stale until the city syncs again
+        public static final String COLUMN_DATE = WeatherEntry.COLUMN_DATE;
+        public static final String COLUMN_WEATHER_CODE = WeatherEntry.COLUMN_WEATHER_CODE;
+        public static final String COLUMN_SHORT_DESC = WeatherEntry.COLUMN_SHORT_DESC;
+        public static final String COLUMN_LONG_DESC = WeatherEntry.COLUMN_LONG_DESC;
+        public static final String COLUMN_CURRENT_TEMP = WeatherEntry.COLUMN_CURRENT_TEMP;
+        public static final String COLUMN_MIN_TEMP = WeatherEntry.COLUMN_MIN_TEMP;
+        public static final String COLUMN_MAX_TEMP = WeatherEntry.COLUMN_MAX_TEMP;
+
+
+        public static Uri buildCurrentConditionsUri(String inputLocationName) {
+            return CONTENT_URI.buildUpon().appendPath(inputLocationName).build();
+        }
+
+        public static String getInputLocationFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+    }
+
+    /* Inner class that defines the columns of the sync metrics, which are kept in memory by SyncMetrics */
+    public static final class MetricsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_METRICS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS;
+
+        // Sync phase, one of the SyncMetrics.PHASE_* names
+        public static final String COLUMN_PHASE = "phase";
+
+        // Number of samples in the rolling window, or in the histogram bucket
+        public static final String COLUMN_SAMPLES = "samples";
+
+        public static final String COLUMN_TOTAL_MILLIS = "total_millis";
+        public static final String COLUMN_P50_MILLIS = "p50_millis";
+        public static final String COLUMN_P90_MILLIS = "p90_millis";
+        public static final String COLUMN_P99_MILLIS = "p99_millis";
+        public static final String COLUMN_MAX_MILLIS = "max_millis";
+
+        // Bytes received, only counted for the download phase
+        public static final String COLUMN_TOTAL_BYTES = "total_bytes";
+
+        // Inclusive upper bound of a histogram bucket
+        public static final String COLUMN_BUCKET_UPPER_MILLIS = "bucket_upper_millis";
+
+        // Counter, one of the SyncMetrics.COUNTER_* names, and its count since the process started
+        public static final String COLUMN_COUNTER = "counter";
+        public static final String COLUMN_COUNT = "count";
+
+        // Path of the counters under the metrics uri, no sync phase has this name
+        public static final String PATH_COUNTERS = "counters";
+
+        public static final Uri COUNTERS_URI = CONTENT_URI.buildUpon().appendPath(PATH_COUNTERS).build();
+
+
+        // Histogram of one phase, the base uri gives a summary row per phase
+        public static Uri buildMetricsPhaseUri(String phase) {
+            return CONTENT_URI.buildUpon().appendPath(phase).build();
+        }
+
+        public static String getPhaseFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+    }
 }
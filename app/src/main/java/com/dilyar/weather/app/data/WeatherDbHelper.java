@@ -16,9 +16,14 @@
 package com.dilyar.weather.app.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.support.annotation.VisibleForTesting;
 
+import com.dilyar.weather.app.data.WeatherContract.ConditionEntry;
+import com.dilyar.weather.app.data.WeatherContract.CurrentConditionsEntry;
 import com.dilyar.weather.app.data.WeatherContract.LocationEntry;
 import com.dilyar.weather.app.data.WeatherContract.WeatherEntry;
 
@@ -28,13 +33,163 @@ import com.dilyar.weather.app.data.WeatherContract.WeatherEntry;
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 41;
+    static final int DATABASE_VERSION = 46;
+
+    // Oldest version onUpgrade migrates in place, the first released one. Anything older is recreated.
+    static final int OLDEST_MIGRATED_VERSION = 41;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Indexes for the selections of WeatherProvider. Weather is looked up and deleted by location and date,
+    // the UNIQUE (date, location_id) index has its columns the other way around.
+    private static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX =
+            "CREATE INDEX IF NOT EXISTS weather_location_date ON " + WeatherEntry.TABLE_NAME +
+                    " (" + WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ");";
+    private static final String SQL_CREATE_PHOTO_CITY_NAME_INDEX =
+            "CREATE INDEX IF NOT EXISTS photo_city_name ON " + WeatherContract.PhotoEntry.TABLE_NAME +
+                    " (" + WeatherContract.PhotoEntry.COLUMN_PHOTO_CITY_NAME + ");";
+
+    // Also used by the migration to version 46, which rebuilds the table without the descriptions.
+    private static final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+            // Why AutoIncrement here, and not above?
+            // Unique keys will be auto-generated in either case.  But for weather
+            // forecasting, it's reasonable to assume the user will want information
+            // for a certain date and all dates *following*, so the forecast data
+            // should be sorted accordingly.
+            WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+
+            // the ID of the location entry associated with this weather data
+            WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_WEATHER_CODE + " INTEGER NOT NULL," +
+
+            WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+
+            WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " REAL, " +
+            WeatherEntry.COLUMN_DEGREES + " REAL, " +
+
+            //Columns for today weather information:
+            WeatherEntry.COLUMN_CURRENT_TEMP + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_CLOUDINESS + " REAL NOT NULL, " +
+
+            // Set up the location column as a foreign key to location table.
+            " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+            // To assure the application have just one weather entry per day
+            // per location, it's created a UNIQUE constraint with REPLACE strategy
+            " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+
+    // Descriptions of each weather code, weather rows only keep the code
+    private static final String SQL_CREATE_CONDITION_TABLE =
+            "CREATE TABLE " + ConditionEntry.TABLE_NAME + " (" +
+                    ConditionEntry.COLUMN_WEATHER_CODE + " INTEGER PRIMARY KEY, " +
+                    ConditionEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                    ConditionEntry.COLUMN_LONG_DESC + " TEXT NOT NULL " +
+                    " );";
+
+    private static final String SQL_CREATE_CURRENT_CONDITIONS_TABLE =
+            "CREATE TABLE " + CurrentConditionsEntry.TABLE_NAME + " (" +
+                    CurrentConditionsEntry.COLUMN_INPUT_LOCATION_NAME + " TEXT PRIMARY KEY, " +
+                    CurrentConditionsEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                    CurrentConditionsEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+                    CurrentConditionsEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                    CurrentConditionsEntry.COLUMN_WEATHER_CODE + " INTEGER NOT NULL, " +
+                    CurrentConditionsEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                    CurrentConditionsEntry.COLUMN_LONG_DESC + " TEXT NOT NULL, " +
+                    CurrentConditionsEntry.COLUMN_CURRENT_TEMP + " REAL NOT NULL, " +
+                    CurrentConditionsEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                    CurrentConditionsEntry.COLUMN_MAX_TEMP + " REAL NOT NULL " +
+                    " );";
+
+    // Copies the weather row of one day of every city into current conditions, with its location and descriptions.
+    static final String SQL_COPY_CURRENT_CONDITIONS =
+            "INSERT OR REPLACE INTO " + CurrentConditionsEntry.TABLE_NAME + " (" +
+                    CurrentConditionsEntry.COLUMN_INPUT_LOCATION_NAME + ", " +
+                    CurrentConditionsEntry.COLUMN_LOC_KEY + ", " +
+                    CurrentConditionsEntry.COLUMN_CITY_NAME + ", " +
+                    CurrentConditionsEntry.COLUMN_DATE + ", " +
+                    CurrentConditionsEntry.COLUMN_WEATHER_CODE + ", " +
+                    CurrentConditionsEntry.COLUMN_SHORT_DESC + ", " +
+                    CurrentConditionsEntry.COLUMN_LONG_DESC + ", " +
+                    CurrentConditionsEntry.COLUMN_CURRENT_TEMP + ", " +
+                    CurrentConditionsEntry.COLUMN_MIN_TEMP + ", " +
+                    CurrentConditionsEntry.COLUMN_MAX_TEMP + ") SELECT " +
+                    LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_INPUT_LOCATION_NAME + ", " +
+                    WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_CITY_NAME + ", " +
+                    WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_DATE + ", " +
+                    WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_WEATHER_CODE + ", " +
+                    ConditionEntry.TABLE_NAME + "." + ConditionEntry.COLUMN_SHORT_DESC + ", " +
+                    ConditionEntry.TABLE_NAME + "." + ConditionEntry.COLUMN_LONG_DESC + ", " +
+                    WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_CURRENT_TEMP + ", " +
+                    WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                    WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_MAX_TEMP +
+                    " FROM " + WeatherEntry.TABLE_NAME + " INNER JOIN " + LocationEntry.TABLE_NAME +
+                    " ON " + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY +
+                    " = " + LocationEntry.TABLE_NAME + "." + LocationEntry._ID +
+                    " INNER JOIN " + ConditionEntry.TABLE_NAME +
+                    " USING (" + ConditionEntry.COLUMN_WEATHER_CODE + ")" +
+                    " WHERE " + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_DATE + " = ?";
+
+    // The same copy of a single location, by date and location id.
+    static final String SQL_COPY_CURRENT_CONDITIONS_OF_LOCATION = SQL_COPY_CURRENT_CONDITIONS +
+            " AND " + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " = ?";
+
+    // Current conditions of the location with this id. The row is found by its primary key, the input location
+    // name, there is no index on its location id.
+    static final String SQL_CURRENT_CONDITIONS_OF_LOCATION_SELECTION =
+            CurrentConditionsEntry.COLUMN_INPUT_LOCATION_NAME + " = (SELECT " +
+                    LocationEntry.COLUMN_INPUT_LOCATION_NAME + " FROM " + LocationEntry.TABLE_NAME +
+                    " WHERE " + LocationEntry._ID + " = ?)";
+
+    // Largest the write-ahead log is left on disk after a checkpoint, in bytes
+    private static final long WAL_SIZE_LIMIT_BYTES = 512 * 1024;
+
     public WeatherDbHelper(Context context) {
 
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+
+
+    // A database of the same schema under another name, so tests and benchmarks leave the real one alone.
+    @VisibleForTesting
+    WeatherDbHelper(Context context, String name) {
+
+        super(context, name, null, DATABASE_VERSION);
+        // With write-ahead logging the loaders of the UI read from their own connections while sync writes,
+        // instead of waiting for its transaction to finish. The platform sizes that connection pool, without WAL
+        // it has a single connection. WalContentionBenchmark measures both.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+        // Checkpoints still run every 1000 pages, the default, this only keeps the log from staying large after one.
+        // The pragma returns a row, so it is run as a query.
+        Cursor cursor = db.rawQuery("PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT_BYTES, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
@@ -59,62 +214,152 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_INPUT_LOCATION_NAME + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_OWM_CITY_ID + " INTEGER, " +
+                LocationEntry.COLUMN_FORECAST_SYNCED + " INTEGER NOT NULL DEFAULT 0, " +
+                LocationEntry.COLUMN_LAST_SYNCED + " INTEGER NOT NULL DEFAULT 0 " +
                 " );";
 
-        final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
-                // Why AutoIncrement here, and not above?
-                // Unique keys will be auto-generated in either case.  But for weather
-                // forecasting, it's reasonable to assume the user will want information
-                // for a certain date and all dates *following*, so the forecast data
-                // should be sorted accordingly.
-                WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-
-                // the ID of the location entry associated with this weather data
-                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
-                WeatherEntry.COLUMN_LONG_DESC + " TEXT NOT NULL, " +
-                WeatherEntry.COLUMN_WEATHER_CODE + " INTEGER NOT NULL," +
-
-                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
-
-                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL, " +
-                WeatherEntry.COLUMN_DEGREES + " REAL, " +
-
-                //Columns for today weather information:
-                WeatherEntry.COLUMN_CURRENT_TEMP + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_CLOUDINESS + " REAL NOT NULL, " +
-
-                // Set up the location column as a foreign key to location table.
-                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
-                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
-
-                // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
-
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_CONDITION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_PHOTO_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_CURRENT_CONDITIONS_TABLE);
+        createIndexes(sqLiteDatabase);
 
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        // Versions from OLDEST_MIGRATED_VERSION on are upgraded in place one version at a time,
+        // so users keep their weather and photos and don't all refetch them right after an update.
+        // SQLiteOpenHelper runs this in a transaction, a failing step leaves the old version as it was.
+        if (oldVersion < OLDEST_MIGRATED_VERSION) {
+            recreateTables(sqLiteDatabase);
+            return;
+        }
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            migrateTo(sqLiteDatabase, version);
+        }
+        // Current conditions are only copies, filled again once the tables they copy are up to date
+        refreshCurrentConditions(sqLiteDatabase, 0);
+    }
+
+
+
+    @Override
+    public void onDowngrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        // There are no steps back, a newer schema is simply discarded
+        recreateTables(sqLiteDatabase);
+    }
+
+
+
+    // Change the schema of version - 1 into the schema of version. Every new DATABASE_VERSION needs a case here.
+    private static void migrateTo(SQLiteDatabase sqLiteDatabase, int version) {
+
+        switch (version) {
+            case 42:
+                sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                        LocationEntry.COLUMN_OWM_CITY_ID + " INTEGER");
+                sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                        LocationEntry.COLUMN_FORECAST_SYNCED + " INTEGER NOT NULL DEFAULT 0");
+                break;
+            case 43:
+                sqLiteDatabase.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                        LocationEntry.COLUMN_LAST_SYNCED + " INTEGER NOT NULL DEFAULT 0");
+                break;
+            case 44:
+                createIndexes(sqLiteDatabase);
+                break;
+            case 45:
+                sqLiteDatabase.execSQL(SQL_CREATE_CURRENT_CONDITIONS_TABLE);
+                break;
+            case 46:
+                moveDescriptionsToConditions(sqLiteDatabase);
+                break;
+            default:
+                throw new IllegalStateException("No migration to database version " + version);
+        }
+    }
+
+
+
+    // This database is only a cache for online data, a schema too old to migrate is discarded and started over.
+    private void recreateTables(SQLiteDatabase sqLiteDatabase) {
+
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ConditionEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherContract.PhotoEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CurrentConditionsEntry.TABLE_NAME);
+        LocationIdCache.invalidate();
         onCreate(sqLiteDatabase);
     }
+
+
+
+    // Version 46 keeps the descriptions once per weather code. SQLite can't drop columns,
+    // so the weather table is copied into a new one without them.
+    private static void moveDescriptionsToConditions(SQLiteDatabase sqLiteDatabase) {
+
+        final String oldWeatherTable = WeatherEntry.TABLE_NAME + "_old";
+        final String weatherColumns = WeatherEntry._ID + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_WEATHER_CODE + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_HUMIDITY + ", " +
+                WeatherEntry.COLUMN_PRESSURE + ", " +
+                WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                WeatherEntry.COLUMN_DEGREES + ", " +
+                WeatherEntry.COLUMN_CURRENT_TEMP + ", " +
+                WeatherEntry.COLUMN_CLOUDINESS;
+
+        sqLiteDatabase.execSQL(SQL_CREATE_CONDITION_TABLE);
+        sqLiteDatabase.execSQL("INSERT OR REPLACE INTO " + ConditionEntry.TABLE_NAME + " (" +
+                ConditionEntry.COLUMN_WEATHER_CODE + ", " +
+                ConditionEntry.COLUMN_SHORT_DESC + ", " +
+                ConditionEntry.COLUMN_LONG_DESC + ") SELECT " +
+                WeatherEntry.COLUMN_WEATHER_CODE + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_LONG_DESC + " FROM " + WeatherEntry.TABLE_NAME);
+
+        sqLiteDatabase.execSQL("ALTER TABLE " + WeatherEntry.TABLE_NAME + " RENAME TO " + oldWeatherTable);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL("INSERT INTO " + WeatherEntry.TABLE_NAME + " (" + weatherColumns + ") SELECT " +
+                weatherColumns + " FROM " + oldWeatherTable);
+        // Takes the indexes of the old table with it
+        sqLiteDatabase.execSQL("DROP TABLE " + oldWeatherTable);
+        createIndexes(sqLiteDatabase);
+    }
+
+
+
+    /**
+     * Copy today's weather of the location with locationId into current conditions again, or of every location
+     * if locationId is 0. Run it in the transaction that changed the weather or location tables.
+     * A location without weather for today keeps no row.
+     */
+    static void refreshCurrentConditions(SQLiteDatabase sqLiteDatabase, long locationId) {
+
+        String today = Long.toString(WeatherContract.getJulianDate(System.currentTimeMillis()));
+        if (locationId == 0) {
+            sqLiteDatabase.delete(CurrentConditionsEntry.TABLE_NAME, null, null);
+            sqLiteDatabase.execSQL(SQL_COPY_CURRENT_CONDITIONS, new Object[]{today});
+        } else {
+            sqLiteDatabase.delete(CurrentConditionsEntry.TABLE_NAME, SQL_CURRENT_CONDITIONS_OF_LOCATION_SELECTION,
+                    new String[]{Long.toString(locationId)});
+            sqLiteDatabase.execSQL(SQL_COPY_CURRENT_CONDITIONS_OF_LOCATION, new Object[]{today, locationId});
+        }
+    }
+
+
+
+    private static void createIndexes(SQLiteDatabase sqLiteDatabase) {
+
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_PHOTO_CITY_NAME_INDEX);
+    }
 }
@@ -19,11 +19,19 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.util.Log;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 public class WeatherProvider extends ContentProvider {
 
     final static String LOG_TAG = ContentProvider.class.getSimpleName();
@@ -31,14 +39,27 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private com.dilyar.weather.app.data.WeatherDbHelper mOpenHelper;
 
+    //Results of city queries, dropped when the city is notified
+    private final QueryCache mQueryCache = new QueryCache();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
     static final int PHOTO = 400;
     static final int PHOTO_WITH_LOCATION = 401;
+    static final int METRICS = 500;
+    static final int METRICS_WITH_PHASE = 501;
+    static final int METRICS_COUNTERS = 502;
+    static final int CURRENT_CONDITIONS_WITH_LOCATION = 600;
+
+    //Descriptions of weather rows are stored once per weather code and joined in by it. With USING
+    //an unqualified weather_code in a projection or selection is not ambiguous.
+    private static final String sJoinConditionByWeatherCode =
+            " LEFT JOIN " + WeatherContract.ConditionEntry.TABLE_NAME +
+                    " USING (" + WeatherContract.ConditionEntry.COLUMN_WEATHER_CODE + ")";
 
-    private static final SQLiteQueryBuilder sWeatherByInputLocationQueryBuilder;
+    static final SQLiteQueryBuilder sWeatherByInputLocationQueryBuilder;
 
     static {
         sWeatherByInputLocationQueryBuilder = new SQLiteQueryBuilder();
@@ -51,7 +72,17 @@ public class WeatherProvider extends ContentProvider {
                         " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
                         "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
                         " = " + WeatherContract.LocationEntry.TABLE_NAME +
-                        "." + WeatherContract.LocationEntry._ID);
+                        "." + WeatherContract.LocationEntry._ID +
+                        sJoinConditionByWeatherCode);
+    }
+
+    private static final SQLiteQueryBuilder sWeatherWithConditionQueryBuilder;
+
+    static {
+        sWeatherWithConditionQueryBuilder = new SQLiteQueryBuilder();
+
+        //weather LEFT JOIN weather_condition USING (weather_code)
+        sWeatherWithConditionQueryBuilder.setTables(WeatherContract.WeatherEntry.TABLE_NAME + sJoinConditionByWeatherCode);
     }
 
     private static final SQLiteQueryBuilder sPhotoByInputLocationQUeryBuilder;
@@ -61,30 +92,57 @@ public class WeatherProvider extends ContentProvider {
 
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME + " = ? ";
 
     //photos.locationSetting = ?
-    private static final String PHOTO_WITH_INPUT_LOCATION =
+    static final String PHOTO_WITH_INPUT_LOCATION =
             WeatherContract.PhotoEntry.TABLE_NAME + "." +
                     WeatherContract.PhotoEntry.COLUMN_PHOTO_CITY_NAME + " = ? ";
 
 
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
+    //Location key followed by WeatherRowBuffer.COLUMNS
+    private static final String sInsertWeatherRowSql = buildInsertWeatherRowSql();
+
+    //WeatherRowBuffer.CONDITION_COLUMNS, a weather code seen again gets its latest descriptions
+    private static final String sInsertConditionSql = "INSERT OR REPLACE INTO " +
+            WeatherContract.ConditionEntry.TABLE_NAME + " (" +
+            WeatherContract.ConditionEntry.COLUMN_WEATHER_CODE + "," +
+            WeatherContract.ConditionEntry.COLUMN_SHORT_DESC + "," +
+            WeatherContract.ConditionEntry.COLUMN_LONG_DESC + ") VALUES (?,?,?)";
+
+    //Weather rows of a location with the descriptions of their codes, as WeatherRowBuffer.addRow(Cursor, int) reads them
+    static final String sStoredWeatherRowsSql = buildStoredWeatherRowsSql();
+
+    //All weather columns of a location with the descriptions of their codes
+    static final String sStoredWeatherSql = "SELECT " + WeatherContract.WeatherEntry.TABLE_NAME + ".*, " +
+            WeatherContract.ConditionEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherContract.ConditionEntry.COLUMN_LONG_DESC +
+            " FROM " + WeatherContract.WeatherEntry.TABLE_NAME + sJoinConditionByWeatherCode +
+            " WHERE " + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?";
+
     //location.location_setting = ? AND date < ?
-    private static final String sLocationIdWithBeforeDateSelection =
+    static final String sLocationIdWithBeforeDateSelection =
                 WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
 
+    //Location columns only the sync adapter reads. No page shows them, so writing only them changes
+    //nothing anybody observes.
+    private static final Set<String> sSyncBookkeepingColumns = new HashSet<>(Arrays.asList(
+            WeatherContract.LocationEntry.COLUMN_OWM_CITY_ID,
+            WeatherContract.LocationEntry.COLUMN_FORECAST_SYNCED,
+            WeatherContract.LocationEntry.COLUMN_LAST_SYNCED));
+
     //location.location_setting = ? AND date = ?
-    private static final String sLocationNameAndDaySelection =
+    static final String sLocationNameAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
@@ -98,11 +156,9 @@ public class WeatherProvider extends ContentProvider {
 
         String inputLocation = WeatherContract.PhotoEntry.getLocationSettingFromUri(uri);
         String[] selectionArgds = new String[]{inputLocation};
-        String selection = WeatherContract.PhotoEntry.TABLE_NAME +
-                "." + WeatherContract.PhotoEntry.COLUMN_PHOTO_CITY_NAME + " = ? ";
         return sPhotoByInputLocationQUeryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
-                selection,
+                PHOTO_WITH_INPUT_LOCATION,
                 selectionArgds,
                 null,
                 null,
@@ -134,6 +190,14 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_PHOTO, PHOTO);
         matcher.addURI(authority, WeatherContract.PATH_PHOTO + "/*", PHOTO_WITH_LOCATION);
 
+        matcher.addURI(authority, WeatherContract.PATH_METRICS, METRICS);
+        //Before "metrics/*", UriMatcher takes the first path that matches
+        matcher.addURI(authority, WeatherContract.PATH_METRICS + "/" + WeatherContract.MetricsEntry.PATH_COUNTERS,
+                METRICS_COUNTERS);
+        matcher.addURI(authority, WeatherContract.PATH_METRICS + "/*", METRICS_WITH_PHASE);
+
+        matcher.addURI(authority, WeatherContract.PATH_CURRENT_CONDITIONS + "/*", CURRENT_CONDITIONS_WITH_LOCATION);
+
         return matcher;
     }
 
@@ -173,6 +237,14 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.PhotoEntry.CONTENT_TYPE;
             case PHOTO_WITH_LOCATION:
                 return WeatherContract.PhotoEntry.CONTENT_TYPE;
+            case METRICS:
+                return WeatherContract.MetricsEntry.CONTENT_TYPE;
+            case METRICS_WITH_PHASE:
+                return WeatherContract.MetricsEntry.CONTENT_TYPE;
+            case METRICS_COUNTERS:
+                return WeatherContract.MetricsEntry.CONTENT_TYPE;
+            case CURRENT_CONDITIONS_WITH_LOCATION:
+                return WeatherContract.CurrentConditionsEntry.CONTENT_ITEM_TYPE;
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -229,11 +301,26 @@ public class WeatherProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
 
+        int match = sUriMatcher.match(uri);
+        Uri notificationUri = getNotificationUri(match, uri);
+
+        String cacheKey = null;
+        long cacheGeneration = 0;
+        if (isCachedQuery(match)) {
+            cacheKey = QueryCache.buildKey(uri, projection, selection, selectionArgs, sortOrder);
+            Cursor cachedCursor = mQueryCache.get(cacheKey);
+            if (cachedCursor != null) {
+                cachedCursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+                return cachedCursor;
+            }
+            cacheGeneration = mQueryCache.getGeneration();
+        }
+
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
 
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             // "weather/*/#"
             case WEATHER_WITH_LOCATION_AND_DATE: {
@@ -248,8 +335,7 @@ public class WeatherProvider extends ContentProvider {
             }
             // "weather"
             case WEATHER: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
+                retCursor = sWeatherWithConditionQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                         projection,
                         selection,
                         selectionArgs,
@@ -301,6 +387,38 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "metrics", summary of every sync phase
+            case METRICS: {
+                retCursor = SyncMetrics.buildSummaryCursor(projection);
+                break;
+            }
+            // "metrics/*", histogram of one sync phase
+            case METRICS_WITH_PHASE: {
+                retCursor = SyncMetrics.buildHistogramCursor(
+                        WeatherContract.MetricsEntry.getPhaseFromUri(uri), projection);
+                if (retCursor == null) {
+                    throw new UnsupportedOperationException("Unknown sync phase: " + uri);
+                }
+                break;
+            }
+            // "metrics/counters", a row per counter
+            case METRICS_COUNTERS: {
+                retCursor = SyncMetrics.buildCountersCursor(projection);
+                break;
+            }
+            // "current/*", primary key lookup of one city
+            case CURRENT_CONDITIONS_WITH_LOCATION: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.CurrentConditionsEntry.TABLE_NAME,
+                        projection,
+                        WeatherContract.CurrentConditionsEntry.COLUMN_INPUT_LOCATION_NAME + " = ?",
+                        new String[]{WeatherContract.CurrentConditionsEntry.getInputLocationFromUri(uri)},
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 //            //"photo" with location and index.
 //            case PHOTO_WITH_INDEX: {
 //                String locationSetting = WeatherContract.PhotoEntry.getInputLocationFromUri(uri);
@@ -320,8 +438,11 @@ public class WeatherProvider extends ContentProvider {
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        Log.d(LOG_TAG, "setNotificationUri: " + uri);
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        if (cacheKey != null) {
+            retCursor = mQueryCache.put(cacheKey, notificationUri, retCursor, cacheGeneration);
+        }
+        Log.d(LOG_TAG, "setNotificationUri: " + notificationUri);
+        retCursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
         return retCursor;
     }
 
@@ -338,7 +459,42 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             case WEATHER: {
 //                getJulianDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                long _id;
+                db.beginTransactionNonExclusive();
+                try {
+                    _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, writeCondition(db, values));
+                    if (_id > 0) {
+                        refreshCurrentConditions(db, values);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (_id > 0)
+                    returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+
+            case WEATHER_WITH_LOCATION: {
+                ContentValues storedRow = findStoredWeather(db, new HashMap<Long, Map<Long, ContentValues>>(), values);
+                if (storedRow != null) {
+                    //Same weather is stored already, nothing to write or to notify
+                    return WeatherContract.WeatherEntry.buildUnchangedWeatherUri(
+                            storedRow.getAsLong(WeatherContract.WeatherEntry._ID));
+                }
+                long _id;
+                db.beginTransactionNonExclusive();
+                try {
+                    _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, writeCondition(db, values));
+                    if (_id > 0) {
+                        refreshCurrentConditions(db, values);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 if (_id > 0)
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
@@ -346,13 +502,18 @@ public class WeatherProvider extends ContentProvider {
                 break;
             }
 
-//
             case LOCATION: {
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
                 if (_id > 0)
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                String inputLocationName = values.getAsString(WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME);
+                LocationIdCache.put(inputLocationName, _id);
+                //A query of this city made before it was saved is cached empty
+                if (inputLocationName != null) {
+                    notifyChange(WeatherContract.WeatherEntry.buildWeatherLocation(inputLocationName));
+                }
                 break;
             }
             case PHOTO: {
@@ -378,12 +539,107 @@ public class WeatherProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         Log.d(LOG_TAG, "notifyChange from insert. Uri: " + uri);
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(getNotificationUri(match, uri));
         return returnUri;
     }
 
 
 
+    /**
+     * Typed write path of the sync adapter, which runs in the same process as this provider.
+     * In one transaction it inserts the location if locationId is 0, writes the rows of weatherRows that
+     * are not stored already, deletes weather up to deleteUpToDate and updates the location with locationSyncValues.
+     * Observers are notified after the commit, only about what changed.
+     *
+     * @return {rows inserted, rows deleted}
+     */
+    public int[] saveWeather(String inputLocationName, long locationId, ContentValues newLocationValues,
+                             WeatherRowBuffer weatherRows, long deleteUpToDate, ContentValues locationSyncValues) {
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean isLocationInserted = false;
+        int inserted = 0;
+        int deleted;
+        int updated = 0;
+
+        db.beginTransactionNonExclusive();
+        try {
+            if (locationId == 0) {
+                locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, newLocationValues);
+                if (locationId <= 0) {
+                    throw new android.database.SQLException("Failed to insert location " + inputLocationName);
+                }
+                isLocationInserted = true;
+            }
+
+            String[] locationIdArgs = new String[]{Long.toString(locationId)};
+            WeatherRowBuffer storedRows = new WeatherRowBuffer();
+            if (!isLocationInserted) {
+                Cursor cursor = db.rawQuery(sStoredWeatherRowsSql, locationIdArgs);
+                try {
+                    while (cursor.moveToNext()) {
+                        storedRows.addRow(cursor, 0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            SQLiteStatement insertStatement = db.compileStatement(sInsertWeatherRowSql);
+            SQLiteStatement conditionStatement = db.compileStatement(sInsertConditionSql);
+            try {
+                Set<Integer> writtenCodes = new HashSet<>();
+                for (int i = 0; i < weatherRows.size(); i++) {
+                    int storedRow = storedRows.indexOfDate(weatherRows.getDate(i));
+                    if (storedRow != -1 && weatherRows.isSameRow(i, storedRows, storedRow)) {
+                        continue;
+                    }
+                    if (writtenCodes.add(weatherRows.getWeatherCode(i))) {
+                        conditionStatement.clearBindings();
+                        weatherRows.bindCondition(conditionStatement, 1, i);
+                        conditionStatement.executeInsert();
+                    }
+                    insertStatement.clearBindings();
+                    insertStatement.bindLong(1, locationId);
+                    weatherRows.bindRow(insertStatement, 2, i);
+                    insertStatement.executeInsert();
+                    inserted++;
+                }
+            } finally {
+                insertStatement.close();
+                conditionStatement.close();
+            }
+
+            deleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME, sLocationIdWithBeforeDateSelection,
+                    new String[]{Long.toString(locationId), Long.toString(deleteUpToDate)});
+
+            if (locationSyncValues != null && locationSyncValues.size() > 0) {
+                updated = db.update(WeatherContract.LocationEntry.TABLE_NAME, locationSyncValues,
+                        WeatherContract.LocationEntry._ID + " = ?", locationIdArgs);
+            }
+            //Also when nothing was written, the row of a new day may have been stored as a forecast before
+            WeatherDbHelper.refreshCurrentConditions(db, locationId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (isLocationInserted) {
+            LocationIdCache.put(inputLocationName, locationId);
+        }
+        //The sync times written on every sync are not a change of the location
+        boolean isLocationChanged = isLocationInserted || (updated > 0 && !isSyncBookkeeping(locationSyncValues));
+        if (isLocationChanged || inserted > 0 || deleted > 0) {
+            notifyChange(WeatherContract.WeatherEntry.buildWeatherLocation(inputLocationName));
+        }
+        if (isLocationChanged) {
+            notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+        }
+        return new int[]{inserted, deleted};
+    }
+
+
+
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
 
@@ -392,29 +648,39 @@ public class WeatherProvider extends ContentProvider {
         int returnCount = 0;
         switch (match) {
 
-            case WEATHER_WITH_LOCATION:
-                db.beginTransaction();
+            case WEATHER_WITH_LOCATION: {
+                CompiledRowInserter inserter = newWeatherInserter(db);
+                db.beginTransactionNonExclusive();
                 try {
+                    //Rows already stored of every location in values, so unchanged rows are not written again
+                    Map<Long, Map<Long, ContentValues>> storedWeather = new HashMap<>();
                     for (ContentValues value : values) {
 //                        getJulianDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        if (findStoredWeather(db, storedWeather, value) != null) {
+                            continue;
+                        }
+                        storeCondition(db, value);
+                        long _id = inserter.insert(value);
                         if (_id != -1) {
+                            refreshCurrentConditions(db, value);
                             returnCount++;
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
+                    inserter.close();
                     db.endTransaction();
                 }
                 break;
+            }
 
 
-            case PHOTO_WITH_LOCATION:
-
-                db.beginTransaction();
+            case PHOTO_WITH_LOCATION: {
+                CompiledRowInserter inserter = new CompiledRowInserter(db, WeatherContract.PhotoEntry.TABLE_NAME);
+                db.beginTransactionNonExclusive();
                 try {
                     for (ContentValues value : values) {
-                        long _id = db.insert(WeatherContract.PhotoEntry.TABLE_NAME, null, value);
+                        long _id = inserter.insert(value);
                         if (_id != -1) {
                             returnCount++;
 
@@ -422,22 +688,166 @@ public class WeatherProvider extends ContentProvider {
                     }
                     db.setTransactionSuccessful();
                 } finally {
+                    inserter.close();
                     db.endTransaction();
                 }
                 break;
+            }
 
             default:
                 returnCount = super.bulkInsert(uri, values);
 
         }
-        Log.d(LOG_TAG, "notifyChange() from bulk insert. uri: " + uri);
-
-        getContext().getContentResolver().notifyChange(uri, null);
+        //Nothing to reload if every row was already stored
+        if (returnCount > 0) {
+            Log.d(LOG_TAG, "notifyChange() from bulk insert. uri: " + uri);
+            notifyChange(getNotificationUri(match, uri));
+        } else {
+            Log.d(LOG_TAG, "bulk insert changed nothing, will not notifyChange to uri: " + uri);
+        }
         return returnCount;
     }
 
 
 
+    //Returns the stored row with the same location and date and the same values as weatherValues, or null.
+    private static ContentValues findStoredWeather(SQLiteDatabase db, Map<Long, Map<Long, ContentValues>> storedWeather,
+                                                   ContentValues weatherValues) {
+
+        Long locationId = weatherValues.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = weatherValues.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId == null || date == null) {
+            return null;
+        }
+
+        Map<Long, ContentValues> storedRows = storedWeather.get(locationId);
+        if (storedRows == null) {
+            storedRows = new HashMap<>();
+            Cursor cursor = db.rawQuery(sStoredWeatherSql, new String[]{Long.toString(locationId)});
+            try {
+                while (cursor.moveToNext()) {
+                    ContentValues storedRow = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(cursor, storedRow);
+                    storedRows.put(cursor.getLong(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE)), storedRow);
+                }
+            } finally {
+                cursor.close();
+            }
+            storedWeather.put(locationId, storedRows);
+        }
+
+        ContentValues storedRow = storedRows.get(date);
+        if (storedRow == null) {
+            return null;
+        }
+        for (String key : weatherValues.keySet()) {
+            if (!isSameValue(weatherValues.get(key), storedRow.getAsString(key))) {
+                return null;
+            }
+        }
+        return storedRow;
+    }
+
+
+
+    /**
+     * Store the descriptions in weatherValues in the condition table under their weather code.
+     *
+     * @return the values left for the weather table, which has no description columns.
+     */
+    private static ContentValues writeCondition(SQLiteDatabase db, ContentValues weatherValues) {
+
+        if (!storeCondition(db, weatherValues)) {
+            return weatherValues;
+        }
+        ContentValues tableValues = new ContentValues(weatherValues);
+        tableValues.remove(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+        tableValues.remove(WeatherContract.WeatherEntry.COLUMN_LONG_DESC);
+        return tableValues;
+    }
+
+
+
+    //Weather inserter that leaves out the descriptions, storeCondition writes them, so rows need no copy without them
+    private static CompiledRowInserter newWeatherInserter(SQLiteDatabase db) {
+
+        return new CompiledRowInserter(db, WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, WeatherContract.WeatherEntry.COLUMN_LONG_DESC);
+    }
+
+
+
+    /**
+     * Store the descriptions in weatherValues in the condition table under their weather code.
+     *
+     * @return true if weatherValues has description columns.
+     */
+    private static boolean storeCondition(SQLiteDatabase db, ContentValues weatherValues) {
+
+        boolean hasShortDesc = weatherValues.containsKey(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+        boolean hasLongDesc = weatherValues.containsKey(WeatherContract.WeatherEntry.COLUMN_LONG_DESC);
+        if (!hasShortDesc && !hasLongDesc) {
+            return false;
+        }
+
+        Integer weatherCode = weatherValues.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_CODE);
+        ContentValues conditionValues = new ContentValues();
+        if (hasShortDesc) {
+            conditionValues.put(WeatherContract.ConditionEntry.COLUMN_SHORT_DESC,
+                    weatherValues.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC));
+        }
+        if (hasLongDesc) {
+            conditionValues.put(WeatherContract.ConditionEntry.COLUMN_LONG_DESC,
+                    weatherValues.getAsString(WeatherContract.WeatherEntry.COLUMN_LONG_DESC));
+        }
+        if (weatherCode == null) {
+            Log.w(LOG_TAG, "Descriptions without a weather code are not stored: " + conditionValues);
+        } else if (hasShortDesc && hasLongDesc) {
+            conditionValues.put(WeatherContract.ConditionEntry.COLUMN_WEATHER_CODE, weatherCode);
+            if (db.insertWithOnConflict(WeatherContract.ConditionEntry.TABLE_NAME, null, conditionValues,
+                    SQLiteDatabase.CONFLICT_REPLACE) == -1) {
+                throw new android.database.SQLException("Failed to insert condition " + conditionValues);
+            }
+        } else {
+            db.update(WeatherContract.ConditionEntry.TABLE_NAME, conditionValues,
+                    WeatherContract.ConditionEntry.COLUMN_WEATHER_CODE + " = ?", new String[]{weatherCode.toString()});
+        }
+        return true;
+    }
+
+
+
+    //Keep current conditions in step with a weather row that was just written, in its transaction.
+    private static void refreshCurrentConditions(SQLiteDatabase db, ContentValues weatherValues) {
+
+        Long locationId = weatherValues.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = weatherValues.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId != null && date != null
+                && date == WeatherContract.getJulianDate(System.currentTimeMillis())) {
+            WeatherDbHelper.refreshCurrentConditions(db, locationId);
+        }
+    }
+
+
+
+    //Stored values come back as strings, numbers are compared by value so 10 and "10.0" are the same.
+    private static boolean isSameValue(Object value, String storedValue) {
+
+        if (value == null || storedValue == null) {
+            return value == null && storedValue == null;
+        }
+        if (value instanceof Number) {
+            try {
+                return ((Number) value).doubleValue() == Double.parseDouble(storedValue);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return value.toString().equals(storedValue);
+    }
+
+
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
 
@@ -445,49 +855,71 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        //Cities of the deleted locations
+        Set<String> changedCities = null;
+        boolean isLocationIdChanged = false;
         // this makes delete all rows return the number of rows deleted
         if (null == selection) selection = "1";
-        switch (match) {
-            case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
-                break;
-            case LOCATION:
-                rowsDeleted = db.delete(
-                        WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
-                break;
-            case PHOTO:
-                rowsDeleted = db.delete(
-                        WeatherContract.PhotoEntry.TABLE_NAME, selection, selectionArgs);
-                break;
-
-            case WEATHER_WITH_LOCATION:
-                String deletedCity = WeatherContract.WeatherEntry.getInputLocationFromUri(uri);
-
-                long locationId = WeatherContract.LocationEntry.getInputLocationId(getContext(),deletedCity);
-                long deletedEndDay = WeatherContract.WeatherEntry.getDateParamFromUri(uri);
-
-
-                rowsDeleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
-                        sLocationIdWithBeforeDateSelection,
-                        new String[]{Long.toString(locationId), Long.toString(deletedEndDay)});
-                break;
-
-            case PHOTO_WITH_LOCATION:
-                String cityName = WeatherContract.PhotoEntry.getLocationSettingFromUri(uri);
-                rowsDeleted = db.delete(WeatherContract.PhotoEntry.TABLE_NAME,
-                        WeatherContract.PhotoEntry.COLUMN_PHOTO_CITY_NAME + " = ?",
-                        new String[]{cityName});
-                break;
+        db.beginTransactionNonExclusive();
+        try {
+            switch (match) {
+                case WEATHER:
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    break;
+                case LOCATION:
+                    changedCities = queryInputLocationNames(db, selection, selectionArgs);
+                    rowsDeleted = db.delete(
+                            WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                    isLocationIdChanged = rowsDeleted != 0;
+                    break;
+                case PHOTO:
+                    rowsDeleted = db.delete(
+                            WeatherContract.PhotoEntry.TABLE_NAME, selection, selectionArgs);
+                    break;
+
+                case WEATHER_WITH_LOCATION:
+                    String deletedCity = WeatherContract.WeatherEntry.getInputLocationFromUri(uri);
+
+                    long locationId = getLocationId(db, deletedCity);
+                    long deletedEndDay = WeatherContract.WeatherEntry.getDateParamFromUri(uri);
+
+
+                    rowsDeleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                            sLocationIdWithBeforeDateSelection,
+                            new String[]{Long.toString(locationId), Long.toString(deletedEndDay)});
+                    break;
+
+                case PHOTO_WITH_LOCATION:
+                    String cityName = WeatherContract.PhotoEntry.getLocationSettingFromUri(uri);
+                    rowsDeleted = db.delete(WeatherContract.PhotoEntry.TABLE_NAME,
+                            WeatherContract.PhotoEntry.COLUMN_PHOTO_CITY_NAME + " = ?",
+                            new String[]{cityName});
+                    break;
+
+                default:
+                    throw new UnsupportedOperationException("Unknown uri: " + uri);
+            }
+            //Current conditions copy weather and location rows, the changed ones are not known here
+            if (rowsDeleted != 0 && match != PHOTO && match != PHOTO_WITH_LOCATION) {
+                WeatherDbHelper.refreshCurrentConditions(db, 0);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
-            default:
-                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        if (isLocationIdChanged) {
+            invalidateLocationIds();
         }
 
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
             Log.d(LOG_TAG, "Deleted item count: " + rowsDeleted + " NotifyChange to uri: " + uri);
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (changedCities != null) {
+                notifyCities(changedCities);
+            }
+            notifyChange(getNotificationUri(match, uri));
         } else {
             Log.d(LOG_TAG, "rowsDeleted == 0, will not notifyChange to uri");
         }
@@ -504,28 +936,221 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsUpdated;
+        //Cities of the updated locations, by their names before and after the update
+        Set<String> changedCities = null;
+        boolean isLocationIdChanged = false;
+
+        if (match == LOCATION && isSyncBookkeeping(values)) {
+            //Written on every sync of a city, also when its weather is not modified
+            return db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection, selectionArgs);
+        }
+
+        db.beginTransactionNonExclusive();
+        try {
+            switch (match) {
+                case WEATHER:
+//                    getJulianDate(values);
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, writeCondition(db, values),
+                            selection, selectionArgs);
+                    break;
+                case LOCATION:
+                    changedCities = queryInputLocationNames(db, selection, selectionArgs);
+                    rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
+                            selectionArgs);
+                    String newInputLocationName = values.getAsString(WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME);
+                    if (newInputLocationName != null) {
+                        changedCities.add(newInputLocationName);
+                    }
+                    //Sync only updates its own columns, anything else may move a name to another id
+                    isLocationIdChanged = rowsUpdated != 0 &&
+                            (values.containsKey(WeatherContract.LocationEntry._ID) ||
+                                    values.containsKey(WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME));
+                    break;
+                case PHOTO:
+                    rowsUpdated = db.update(WeatherContract.PhotoEntry.TABLE_NAME, values, selection, selectionArgs);
+                    break;
+
+                default:
+                    throw new UnsupportedOperationException("Unknown uri: " + uri);
+            }
+            //Current conditions copy weather rows and the names of locations, the changed ones are not known here
+            if (rowsUpdated != 0 && (match == WEATHER
+                    || values.containsKey(WeatherContract.LocationEntry._ID)
+                    || values.containsKey(WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME)
+                    || values.containsKey(WeatherContract.LocationEntry.COLUMN_CITY_NAME))) {
+                WeatherDbHelper.refreshCurrentConditions(db, 0);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (isLocationIdChanged) {
+            invalidateLocationIds();
+        }
+        if (rowsUpdated != 0) {
+            if (changedCities != null) {
+                notifyCities(changedCities);
+            }
+            notifyChange(getNotificationUri(match, uri));
+        }
+        return rowsUpdated;
+    }
+
+
+
+    private static String buildStoredWeatherRowsSql() {
+
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (String column : WeatherRowBuffer.COLUMNS) {
+            sql.append(column).append(',');
+        }
+        return sql.append(WeatherContract.ConditionEntry.COLUMN_SHORT_DESC).append(',')
+                .append(WeatherContract.ConditionEntry.COLUMN_LONG_DESC)
+                .append(" FROM ").append(WeatherContract.WeatherEntry.TABLE_NAME).append(sJoinConditionByWeatherCode)
+                .append(" WHERE ").append(WeatherContract.WeatherEntry.COLUMN_LOC_KEY).append(" = ?").toString();
+    }
+
+
+
+    private static String buildInsertWeatherRowSql() {
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(WeatherContract.WeatherEntry.TABLE_NAME)
+                .append(" (").append(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        StringBuilder bindArgs = new StringBuilder("?");
+        for (String column : WeatherRowBuffer.COLUMNS) {
+            sql.append(',').append(column);
+            bindArgs.append(",?");
+        }
+        return sql.append(") VALUES (").append(bindArgs).append(')').toString();
+    }
+
+
+
+    /**
+     * Drop the cached location ids once a change of them is committed. Dropping them before, while the
+     * transaction is still open, would let a reader cache the old id again under the new generation.
+     */
+    private void invalidateLocationIds() {
+
+        LocationIdCache.invalidate();
+    }
+
+
+
+    //True if values write nothing but the sync bookkeeping of a location.
+    private static boolean isSyncBookkeeping(ContentValues values) {
+
+        return values != null && values.size() > 0 && sSyncBookkeepingColumns.containsAll(values.keySet());
+    }
+
+
+
+    //Input location names of the locations in selection, read in the transaction about to change them.
+    private static Set<String> queryInputLocationNames(SQLiteDatabase db, String selection, String[] selectionArgs) {
+
+        Set<String> inputLocationNames = new HashSet<>();
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME},
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(0)) {
+                    inputLocationNames.add(cursor.getString(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return inputLocationNames;
+    }
+
+
+
+    //Id of a location from the cache, or from the database this provider writes to.
+    private static long getLocationId(SQLiteDatabase db, String inputLocationName) {
+
+        long locationId = LocationIdCache.get(inputLocationName);
+        if (locationId != 0) {
+            return locationId;
+        }
+        long cacheGeneration = LocationIdCache.getGeneration();
+
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME + " = ?",
+                new String[]{inputLocationName}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                locationId = cursor.getLong(0);
+                LocationIdCache.putIfCurrent(inputLocationName, locationId, cacheGeneration);
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationId;
+    }
+
+
+
+    /**
+     * Uri a cursor of uri is notified on, and that changes made through uri are notified to.
+     * Everything about one city is notified on the uri of that city only, so a change of one city reloads
+     * the pages showing it and not every page. The observers of a cursor also get notified about everything
+     * below their uri, so a date uri of a city hears about its city, and the table uri hears about every city.
+     */
+    private static Uri getNotificationUri(int match, Uri uri) {
 
         switch (match) {
+            case WEATHER_WITH_LOCATION:
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                return WeatherContract.WeatherEntry.buildWeatherLocation(
+                        WeatherContract.WeatherEntry.getInputLocationFromUri(uri));
+            //Current conditions only change together with the weather of their city
+            case CURRENT_CONDITIONS_WITH_LOCATION:
+                return WeatherContract.WeatherEntry.buildWeatherLocation(
+                        WeatherContract.CurrentConditionsEntry.getInputLocationFromUri(uri));
+            case PHOTO_WITH_LOCATION:
+                return WeatherContract.PhotoEntry.buildPhotoUriWithLocation(
+                        WeatherContract.PhotoEntry.getLocationSettingFromUri(uri));
             case WEATHER:
-//                getJulianDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
-                break;
+                return WeatherContract.WeatherEntry.CONTENT_URI;
             case LOCATION:
-                rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
-                break;
+                return WeatherContract.LocationEntry.CONTENT_URI;
             case PHOTO:
-                rowsUpdated = db.update(WeatherContract.PhotoEntry.TABLE_NAME, values, selection, selectionArgs);
-                break;
-
+                return WeatherContract.PhotoEntry.CONTENT_URI;
             default:
-                throw new UnsupportedOperationException("Unknown uri: " + uri);
+                return uri;
         }
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+
+
+    //Only the queries of one city are cached, they are the ones repeated by every page, notification and sync
+    private static boolean isCachedQuery(int match) {
+
+        return match == WEATHER_WITH_LOCATION
+                || match == WEATHER_WITH_LOCATION_AND_DATE
+                || match == PHOTO_WITH_LOCATION;
+    }
+
+
+
+    //Weather of a city is read joined with its location, so a change of a location is a change of its city.
+    private void notifyCities(Set<String> inputLocationNames) {
+
+        for (String inputLocationName : inputLocationNames) {
+            notifyChange(WeatherContract.WeatherEntry.buildWeatherLocation(inputLocationName));
         }
-        return rowsUpdated;
+    }
+
+
+
+    //Nothing is uploaded on a change, so the sync manager is not asked about it.
+    //Cached results of uri are dropped at the same time, once the change can be read.
+    private void notifyChange(Uri uri) {
+
+        mQueryCache.invalidate(uri);
+        getContext().getContentResolver().notifyChange(uri, null, false);
     }
 
 }
\ No newline at end of file
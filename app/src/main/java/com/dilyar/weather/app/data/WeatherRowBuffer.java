@@ -0,0 +1,296 @@
+package com.dilyar.weather.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteProgram;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rows of the weather table, without their location key, kept in primitive arrays together with the
+ * descriptions of their weather codes, which are stored in the condition table.
+ * The sync adapter parses into it and WeatherProvider.saveWeather binds it to its insert statements,
+ * so a forecast is written without boxing every field into ContentValues.
+ * A buffer is not thread safe, hand it over through something that publishes it, like a Future.
+ */
+public class WeatherRowBuffer {
+
+    //Value of a column that is left NULL, only wind speed and degrees may be
+    public static final double NO_VALUE = Double.NaN;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    //OWM only has a few dozen descriptions, every city and day shares one instance of each
+    private static final int MAX_INTERNED_DESCRIPTIONS = 512;
+    private static final ConcurrentHashMap<String, String> sDescriptions = new ConcurrentHashMap<>();
+
+    //Columns of the weather table in the order bindRow binds them, after the location key
+    static final String[] COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_CODE,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.WeatherEntry.COLUMN_CURRENT_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_CLOUDINESS
+    };
+
+    //Columns of the condition table in the order bindCondition binds them
+    static final String[] CONDITION_COLUMNS = {
+            WeatherContract.ConditionEntry.COLUMN_WEATHER_CODE,
+            WeatherContract.ConditionEntry.COLUMN_SHORT_DESC,
+            WeatherContract.ConditionEntry.COLUMN_LONG_DESC
+    };
+
+    private int mSize;
+    private long[] mDates = new long[INITIAL_CAPACITY];
+    private int[] mWeatherCodes = new int[INITIAL_CAPACITY];
+    private String[] mShortDescs = new String[INITIAL_CAPACITY];
+    private String[] mLongDescs = new String[INITIAL_CAPACITY];
+    private double[] mMinTemps = new double[INITIAL_CAPACITY];
+    private double[] mMaxTemps = new double[INITIAL_CAPACITY];
+    private double[] mHumidities = new double[INITIAL_CAPACITY];
+    private double[] mPressures = new double[INITIAL_CAPACITY];
+    private double[] mWindSpeeds = new double[INITIAL_CAPACITY];
+    private double[] mDegrees = new double[INITIAL_CAPACITY];
+    private double[] mCurrentTemps = new double[INITIAL_CAPACITY];
+    private double[] mCloudiness = new double[INITIAL_CAPACITY];
+
+
+
+    public void addRow(long date, int weatherCode, String shortDesc, String longDesc, double minTemp, double maxTemp,
+                       double humidity, double pressure, double windSpeed, double degrees,
+                       double currentTemp, double cloudiness) {
+
+        if (mSize == mDates.length) {
+            grow();
+        }
+        mDates[mSize] = date;
+        mWeatherCodes[mSize] = weatherCode;
+        mShortDescs[mSize] = internDescription(shortDesc);
+        mLongDescs[mSize] = internDescription(longDesc);
+        mMinTemps[mSize] = minTemp;
+        mMaxTemps[mSize] = maxTemp;
+        mHumidities[mSize] = humidity;
+        mPressures[mSize] = pressure;
+        mWindSpeeds[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mCurrentTemps[mSize] = currentTemp;
+        mCloudiness[mSize] = cloudiness;
+        mSize++;
+    }
+
+
+
+    public void addAll(WeatherRowBuffer rows) {
+
+        for (int i = 0; i < rows.mSize; i++) {
+            addRow(rows.mDates[i], rows.mWeatherCodes[i], rows.mShortDescs[i], rows.mLongDescs[i],
+                    rows.mMinTemps[i], rows.mMaxTemps[i], rows.mHumidities[i], rows.mPressures[i],
+                    rows.mWindSpeeds[i], rows.mDegrees[i], rows.mCurrentTemps[i], rows.mCloudiness[i]);
+        }
+    }
+
+
+
+    //Keeps the arrays, so a buffer can be filled again without allocating
+    public void clear() {
+
+        Arrays.fill(mShortDescs, 0, mSize, null);
+        Arrays.fill(mLongDescs, 0, mSize, null);
+        mSize = 0;
+    }
+
+
+
+    public int size() {
+
+        return mSize;
+    }
+
+
+
+    public boolean isEmpty() {
+
+        return mSize == 0;
+    }
+
+
+
+    public long getDate(int row) {
+
+        return mDates[row];
+    }
+
+
+
+    public int getWeatherCode(int row) {
+
+        return mWeatherCodes[row];
+    }
+
+
+
+    //Bind row to statement starting at firstIndex, in the order of COLUMNS.
+    void bindRow(SQLiteProgram statement, int firstIndex, int row) {
+
+        int index = firstIndex;
+        statement.bindLong(index++, mDates[row]);
+        statement.bindLong(index++, mWeatherCodes[row]);
+        statement.bindDouble(index++, mMinTemps[row]);
+        statement.bindDouble(index++, mMaxTemps[row]);
+        statement.bindDouble(index++, mHumidities[row]);
+        statement.bindDouble(index++, mPressures[row]);
+        bindNullable(statement, index++, mWindSpeeds[row]);
+        bindNullable(statement, index++, mDegrees[row]);
+        statement.bindDouble(index++, mCurrentTemps[row]);
+        statement.bindDouble(index, mCloudiness[row]);
+    }
+
+
+
+    //Bind the descriptions of the weather code of row to statement starting at firstIndex, in the order of CONDITION_COLUMNS.
+    void bindCondition(SQLiteProgram statement, int firstIndex, int row) {
+
+        statement.bindLong(firstIndex, mWeatherCodes[row]);
+        bindNullable(statement, firstIndex + 1, mShortDescs[row]);
+        bindNullable(statement, firstIndex + 2, mLongDescs[row]);
+    }
+
+
+
+    //Add a row read from a cursor over COLUMNS followed by the short and the long description, starting at firstColumn.
+    void addRow(Cursor cursor, int firstColumn) {
+
+        int column = firstColumn;
+        long date = cursor.getLong(column++);
+        int weatherCode = cursor.getInt(column++);
+        double minTemp = cursor.getDouble(column++);
+        double maxTemp = cursor.getDouble(column++);
+        double humidity = cursor.getDouble(column++);
+        double pressure = cursor.getDouble(column++);
+        double windSpeed = getNullable(cursor, column++);
+        double degrees = getNullable(cursor, column++);
+        double currentTemp = cursor.getDouble(column++);
+        double cloudiness = cursor.getDouble(column++);
+        addRow(date, weatherCode, cursor.getString(column++), cursor.getString(column), minTemp, maxTemp,
+                humidity, pressure, windSpeed, degrees, currentTemp, cloudiness);
+    }
+
+
+
+    /**
+     * @return the index of the row with this date, or -1.
+     */
+    int indexOfDate(long date) {
+
+        for (int i = 0; i < mSize; i++) {
+            if (mDates[i] == date) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+
+    boolean isSameRow(int row, WeatherRowBuffer other, int otherRow) {
+
+        return mDates[row] == other.mDates[otherRow]
+                && mWeatherCodes[row] == other.mWeatherCodes[otherRow]
+                && isSameText(mShortDescs[row], other.mShortDescs[otherRow])
+                && isSameText(mLongDescs[row], other.mLongDescs[otherRow])
+                && isSameNumber(mMinTemps[row], other.mMinTemps[otherRow])
+                && isSameNumber(mMaxTemps[row], other.mMaxTemps[otherRow])
+                && isSameNumber(mHumidities[row], other.mHumidities[otherRow])
+                && isSameNumber(mPressures[row], other.mPressures[otherRow])
+                && isSameNumber(mWindSpeeds[row], other.mWindSpeeds[otherRow])
+                && isSameNumber(mDegrees[row], other.mDegrees[otherRow])
+                && isSameNumber(mCurrentTemps[row], other.mCurrentTemps[otherRow])
+                && isSameNumber(mCloudiness[row], other.mCloudiness[otherRow]);
+    }
+
+
+
+    private void grow() {
+
+        int capacity = mDates.length * 2;
+        mDates = Arrays.copyOf(mDates, capacity);
+        mWeatherCodes = Arrays.copyOf(mWeatherCodes, capacity);
+        mShortDescs = Arrays.copyOf(mShortDescs, capacity);
+        mLongDescs = Arrays.copyOf(mLongDescs, capacity);
+        mMinTemps = Arrays.copyOf(mMinTemps, capacity);
+        mMaxTemps = Arrays.copyOf(mMaxTemps, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+        mCurrentTemps = Arrays.copyOf(mCurrentTemps, capacity);
+        mCloudiness = Arrays.copyOf(mCloudiness, capacity);
+    }
+
+
+
+    private static String internDescription(String description) {
+
+        if (description == null) {
+            return null;
+        }
+        String interned = sDescriptions.get(description);
+        if (interned != null) {
+            return interned;
+        }
+        if (sDescriptions.size() >= MAX_INTERNED_DESCRIPTIONS) {
+            return description;
+        }
+        interned = sDescriptions.putIfAbsent(description, description);
+        return interned != null ? interned : description;
+    }
+
+
+
+    private static void bindNullable(SQLiteProgram statement, int index, double value) {
+
+        if (Double.isNaN(value)) {
+            statement.bindNull(index);
+        } else {
+            statement.bindDouble(index, value);
+        }
+    }
+
+
+
+    private static void bindNullable(SQLiteProgram statement, int index, String value) {
+
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+
+
+    private static double getNullable(Cursor cursor, int column) {
+
+        return cursor.isNull(column) ? NO_VALUE : cursor.getDouble(column);
+    }
+
+
+
+    private static boolean isSameText(String text, String otherText) {
+
+        return text == null ? otherText == null : text.equals(otherText);
+    }
+
+
+
+    //NO_VALUE is the same as NO_VALUE, which == does not say
+    private static boolean isSameNumber(double number, double otherNumber) {
+
+        return number == otherNumber || (Double.isNaN(number) && Double.isNaN(otherNumber));
+    }
+}
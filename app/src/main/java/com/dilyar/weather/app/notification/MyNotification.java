@@ -29,11 +29,12 @@ public class MyNotification {
 
 
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[]{
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_CODE,
-            WeatherContract.WeatherEntry.COLUMN_LONG_DESC,
-            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
-            WeatherContract.WeatherEntry.COLUMN_CURRENT_TEMP,
-            WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME
+            WeatherContract.CurrentConditionsEntry.COLUMN_WEATHER_CODE,
+            WeatherContract.CurrentConditionsEntry.COLUMN_LONG_DESC,
+            WeatherContract.CurrentConditionsEntry.COLUMN_CITY_NAME,
+            WeatherContract.CurrentConditionsEntry.COLUMN_CURRENT_TEMP,
+            WeatherContract.CurrentConditionsEntry.COLUMN_INPUT_LOCATION_NAME,
+            WeatherContract.CurrentConditionsEntry.COLUMN_DATE
     };
     // these indices must match the projection
     private static final int COL_WEATHER_CODE = 0;
@@ -41,10 +42,23 @@ public class MyNotification {
     private static final int COL_CITY_NAME = 2;
     private static final int COL_CURRENT_TEMP = 3;
     private static final int COL_INPUT_LOCATION = 4;
+    private static final int COL_DATE = 5;
 
 
     public static void notifyWeather(Context context, String updatedDataCity) {
 
+        notifyWeather(context, updatedDataCity, true);
+    }
+
+
+
+    //A sync that saved identical weather only keeps the daily notification going, the other types are about changes
+    public static void notifyWeather(Context context, String updatedDataCity, boolean isWeatherChanged) {
+
+        if (!isWeatherChanged && !Utility.getNotificationType(context).equals(
+                context.getString(R.string.pref_notification_type_daily))) {
+            return;
+        }
         boolean needToPushNotification = checkNotificationStatus(context, updatedDataCity);
         if (needToPushNotification) {
             pushNotification(context, Utility.getNotificationCity(context));
@@ -96,11 +110,9 @@ public class MyNotification {
     public static void pushNotification(Context context, String notificationCity) {
 
 
-        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(notificationCity, System.currentTimeMillis());
-
-        Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+        Cursor cursor = queryCurrentConditions(context, notificationCity, NOTIFY_WEATHER_PROJECTION);
 
-        if (cursor.moveToFirst()) {
+        if (cursor.moveToFirst() && isToday(cursor.getLong(COL_DATE))) {
             int weatherId = cursor.getInt(COL_WEATHER_CODE);
             double currentTemp = cursor.getDouble(COL_CURRENT_TEMP);
             String longDesc = cursor.getString(COL_LONG_DESC);
@@ -157,15 +169,14 @@ public class MyNotification {
     //Tell if weather changed rapidly.
     public static boolean weatherIsChangedRapidly(Context context, String notificationCity) {
 
-        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(notificationCity, System.currentTimeMillis());
+        Cursor cursor = queryCurrentConditions(context, notificationCity, new String[]{
+                WeatherContract.CurrentConditionsEntry.COLUMN_WEATHER_CODE,
+                WeatherContract.CurrentConditionsEntry.COLUMN_DATE});
+        boolean hasWeatherOfToday = cursor.moveToFirst() && isToday(cursor.getLong(1));
+        int weatherCode = hasWeatherOfToday ? cursor.getInt(0) : 0;
+        cursor.close();
 
-        Cursor cursor = context.getContentResolver().query(weatherUri,
-                new String[]{WeatherContract.WeatherEntry.COLUMN_WEATHER_CODE},
-                null,
-                null,
-                null);
-        if (cursor.moveToFirst()) {
-            int weatherCode = cursor.getInt(0);
+        if (hasWeatherOfToday) {
             if (weatherCode >= 200 && weatherCode < 300) {
                 //Thunderstorm
                 return true;
@@ -196,8 +207,23 @@ public class MyNotification {
             }
         }
 
-        cursor.close();
-
         return false;
     }
+
+
+
+    //Today's weather of a city is looked up by its name in the current conditions table, without a join
+    private static Cursor queryCurrentConditions(Context context, String notificationCity, String[] projection) {
+
+        Uri currentConditionsUri = WeatherContract.CurrentConditionsEntry.buildCurrentConditionsUri(notificationCity);
+        return context.getContentResolver().query(currentConditionsUri, projection, null, null, null);
+    }
+
+
+
+    //A city that was not synced today still has the conditions of an earlier day
+    private static boolean isToday(long date) {
+
+        return date == WeatherContract.getJulianDate(System.currentTimeMillis());
+    }
 }
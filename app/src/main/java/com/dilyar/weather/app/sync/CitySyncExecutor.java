@@ -0,0 +1,164 @@
+package com.dilyar.weather.app.sync;
+
+import android.content.SyncResult;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the sync of several cities on a bounded thread pool, so the wall-clock time of a
+ * multi-city sync grows with the slowest city instead of the sum of all cities.
+ * Every city gets its own timeout, counted from the moment its sync actually starts.
+ */
+public class CitySyncExecutor {
+
+    private static final String LOG_TAG = CitySyncExecutor.class.getSimpleName();
+
+    public interface CitySyncTask {
+        @SunshineSyncAdapter.LocationStatusCode
+        int syncCity(String inputLocationName);
+    }
+
+    private static final long NOT_STARTED = 0;
+
+    private final int mMaxParallelCities;
+    private final long mCityTimeoutMillis;
+
+
+
+    public CitySyncExecutor(int maxParallelCities, long cityTimeoutMillis) {
+
+        mMaxParallelCities = Math.max(1, maxParallelCities);
+        mCityTimeoutMillis = cityTimeoutMillis;
+    }
+
+
+
+    /**
+     * Sync all given cities and block until every city is done or has timed out.
+     * The outcome of each city is added to the stats of syncResult.
+     */
+    public void syncCities(List<String> cityNames, final CitySyncTask task, SyncResult syncResult) {
+
+        if (cityNames == null || cityNames.isEmpty()) {
+            return;
+        }
+
+        int threadCount = Math.min(mMaxParallelCities, cityNames.size());
+        ExecutorService threadPool = Executors.newFixedThreadPool(threadCount);
+        List<Future<Integer>> futures = new ArrayList<>(cityNames.size());
+        final List<AtomicLong> startTimes = new ArrayList<>(cityNames.size());
+
+        try {
+            for (final String cityName : cityNames) {
+                final AtomicLong startTime = new AtomicLong(NOT_STARTED);
+                startTimes.add(startTime);
+                futures.add(threadPool.submit(new Callable<Integer>() {
+
+                    @Override
+                    public Integer call() throws Exception {
+
+                        startTime.set(System.currentTimeMillis());
+                        return task.syncCity(cityName);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                int status = awaitCity(futures.get(i), startTimes.get(i), cityNames.get(i));
+                recordCityResult(syncResult, status);
+            }
+        } finally {
+            threadPool.shutdownNow();
+        }
+
+        Log.d(LOG_TAG, "Synced " + cityNames.size() + " cities with " + threadCount + " threads. Stats: " + syncResult.stats);
+    }
+
+
+
+    @SunshineSyncAdapter.LocationStatusCode
+    private int awaitCity(Future<Integer> future, AtomicLong startTime, String cityName) {
+
+        try {
+            while (true) {
+                long startedAt = startTime.get();
+                //A city waiting in the queue has not used up any of its time yet
+                long waitMillis = startedAt == NOT_STARTED ?
+                        mCityTimeoutMillis : startedAt + mCityTimeoutMillis - System.currentTimeMillis();
+                if (waitMillis <= 0) {
+                    throw new TimeoutException();
+                }
+                try {
+                    return future.get(waitMillis, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (startTime.get() != NOT_STARTED &&
+                            System.currentTimeMillis() - startTime.get() >= mCityTimeoutMillis) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (TimeoutException e) {
+            Log.e(LOG_TAG, "Syncing " + cityName + " timed out after " + mCityTimeoutMillis + "ms");
+            future.cancel(true);
+            return SunshineSyncAdapter.SERVER_DOWN;
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Syncing " + cityName + " failed", e.getCause());
+            return SunshineSyncAdapter.SERVER_UNKNOWN;
+        } catch (CancellationException e) {
+            return SunshineSyncAdapter.SERVER_DOWN;
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Interrupted while waiting for " + cityName);
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return SunshineSyncAdapter.SERVER_DOWN;
+        }
+    }
+
+
+
+    /**
+     * SyncResult is shared by all cities of a sync, so its stats are only touched while holding its lock.
+     * IO problems are soft errors the framework will retry, an invalid city is not worth retrying.
+     */
+    public static void recordCityResult(SyncResult syncResult, @SunshineSyncAdapter.LocationStatusCode int status) {
+
+        synchronized (syncResult) {
+            syncResult.stats.numEntries++;
+            switch (status) {
+                case SunshineSyncAdapter.SERVER_STATUS_OK:
+                    break;
+                case SunshineSyncAdapter.SERVER_DOWN:
+                    syncResult.stats.numIoExceptions++;
+                    break;
+                case SunshineSyncAdapter.SERVER_INVALID_CITY:
+                    syncResult.stats.numParseExceptions++;
+                    break;
+                default:
+                    syncResult.stats.numSkippedEntries++;
+                    break;
+            }
+        }
+    }
+
+
+
+    //A city that did not need to be synced this time, e.g. because its data is still fresh.
+    public static void recordSkippedCity(SyncResult syncResult) {
+
+        synchronized (syncResult) {
+            syncResult.stats.numEntries++;
+            syncResult.stats.numSkippedEntries++;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.dilyar.weather.app.sync;
+
+import com.dilyar.weather.app.data.SyncMetrics;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Coalesces sync requests of the same city. A request is not passed on to the sync manager while a requested
+ * sync of that city is still waiting, or while the city is being synced right now, by a sync of its own or
+ * as one of all cities. A requested sync that finds its city was synced by another sync after it was
+ * requested is skipped. Every request and sync coalesced this way is counted as SyncMetrics.COUNTER_SYNCS_COALESCED.
+ * A waiting request expires after PENDING_MILLIS in case the sync manager dropped it, and all of them are
+ * dropped when syncing is stopped.
+ */
+public class CitySyncRequestCoalescer {
+
+    private static final long PENDING_MILLIS = 60 * 1000;
+
+    private static class PendingRequest {
+        final long requestedAt;
+        final boolean force;
+
+        PendingRequest(long requestedAt, boolean force) {
+            this.requestedAt = requestedAt;
+            this.force = force;
+        }
+    }
+
+    //Input location name -> request of that city waiting to be synced
+    private static final Map<String, PendingRequest> sPendingRequests = new HashMap<>();
+    //Cities some sync is fetching right now
+    private static final Set<String> sSyncingCities = new HashSet<>();
+    //Input location name -> when a sync of that city last saved it
+    private static final Map<String, Long> sSyncedAt = new HashMap<>();
+
+
+
+    /**
+     * Remember a sync request of this city, unless it is covered already: by a waiting request, where a forced
+     * request is only covered by a forced one, or by a sync of the city running right now.
+     *
+     * @return true if the sync needs to be requested, false if it is coalesced.
+     */
+    public static synchronized boolean addRequest(String inputLocationName, boolean force) {
+
+        long currentTime = System.currentTimeMillis();
+        PendingRequest pendingRequest = sPendingRequests.get(inputLocationName);
+        boolean isPending = pendingRequest != null && currentTime - pendingRequest.requestedAt < PENDING_MILLIS
+                && (pendingRequest.force || !force);
+        if (isPending || sSyncingCities.contains(inputLocationName)) {
+            SyncMetrics.increment(SyncMetrics.COUNTER_SYNCS_COALESCED);
+            return false;
+        }
+        sPendingRequests.put(inputLocationName, new PendingRequest(currentTime, force));
+        return true;
+    }
+
+
+
+    //The requested sync of this city started, from now on a new request gets a sync of its own
+    public static synchronized void removeRequest(String inputLocationName) {
+
+        sPendingRequests.remove(inputLocationName);
+    }
+
+
+
+    /**
+     * A sync starts fetching this city, requests made from now on are covered by it until endSync.
+     * A requested sync of this city that is still waiting is taken over by this one.
+     *
+     * @return false if another sync is fetching the city already, the caller leaves it to that one.
+     */
+    public static synchronized boolean beginSync(String inputLocationName) {
+
+        if (!sSyncingCities.add(inputLocationName)) {
+            SyncMetrics.increment(SyncMetrics.COUNTER_SYNCS_COALESCED);
+            return false;
+        }
+        sPendingRequests.remove(inputLocationName);
+        return true;
+    }
+
+
+
+    //The sync that began fetching this city is done with it, isSaved if its weather was saved.
+    public static synchronized void endSync(String inputLocationName, boolean isSaved) {
+
+        sSyncingCities.remove(inputLocationName);
+        if (isSaved) {
+            sSyncedAt.put(inputLocationName, System.currentTimeMillis());
+        }
+    }
+
+
+
+    /**
+     * @return true if a sync saved this city at or after requestedAt, so a sync requested then has nothing
+     * left to do. It is counted as coalesced.
+     */
+    public static synchronized boolean isSyncedSince(String inputLocationName, long requestedAt) {
+
+        Long syncedAt = sSyncedAt.get(inputLocationName);
+        if (syncedAt != null && syncedAt >= requestedAt) {
+            SyncMetrics.increment(SyncMetrics.COUNTER_SYNCS_COALESCED);
+            return true;
+        }
+        return false;
+    }
+
+
+
+    //Requests canceled together with syncing, nothing is waiting for them anymore.
+    public static synchronized void clearRequests() {
+
+        sPendingRequests.clear();
+    }
+}
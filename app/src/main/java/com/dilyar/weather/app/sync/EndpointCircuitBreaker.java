@@ -0,0 +1,147 @@
+package com.dilyar.weather.app.sync;
+
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breaker of one OWM endpoint. After FAILURE_THRESHOLD requests in a row failed, the endpoint is
+ * considered down and every request fails fast for OPEN_MILLIS. Then a single probe request is let through:
+ * if it succeeds the endpoint is used again, otherwise it stays down for another OPEN_MILLIS.
+ *
+ * Breakers live as long as the process, so they are shared by every sync and every city of a sync.
+ */
+public class EndpointCircuitBreaker {
+
+    private static final String LOG_TAG = EndpointCircuitBreaker.class.getSimpleName();
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long OPEN_MILLIS = 60 * 1000;
+
+    private static final int STATE_CLOSED = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int STATE_HALF_OPEN = 2;
+
+    private static final ConcurrentHashMap<String, EndpointCircuitBreaker> sBreakers = new ConcurrentHashMap<>();
+
+    private final String mEndpoint;
+    private int mState = STATE_CLOSED;
+    private int mConsecutiveFailures;
+    private long mOpenedAt;
+
+
+
+    private EndpointCircuitBreaker(String endpoint) {
+
+        mEndpoint = endpoint;
+    }
+
+
+
+    public static EndpointCircuitBreaker forEndpoint(String endpoint) {
+
+        EndpointCircuitBreaker breaker = sBreakers.get(endpoint);
+        if (breaker == null) {
+            EndpointCircuitBreaker newBreaker = new EndpointCircuitBreaker(endpoint);
+            breaker = sBreakers.putIfAbsent(endpoint, newBreaker);
+            if (breaker == null) {
+                breaker = newBreaker;
+            }
+        }
+        return breaker;
+    }
+
+
+
+    //Breakers outlive a test or benchmark, so each one starts with every endpoint closed
+    @VisibleForTesting
+    static void resetAll() {
+
+        sBreakers.clear();
+    }
+
+
+
+    /**
+     * True if any endpoint is down right now. A breaker whose open window is over is not counted any more,
+     * the next request to it is let through as the probe. Neither is one waiting for its probe result.
+     * Breakers outlive the sync that opened them, so counting those would report OWM down until a probe runs.
+     */
+    public static boolean isAnyOpen() {
+
+        for (EndpointCircuitBreaker breaker : sBreakers.values()) {
+            if (breaker.isOpen()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+
+    public synchronized boolean isOpen() {
+
+        return mState == STATE_OPEN && System.currentTimeMillis() - mOpenedAt < OPEN_MILLIS;
+    }
+
+
+
+    /**
+     * Whether a request to this endpoint may be made now. While the breaker is open only the first
+     * caller after OPEN_MILLIS gets through, as the probe.
+     */
+    public synchronized boolean allowRequest() {
+
+        switch (mState) {
+            case STATE_CLOSED:
+                return true;
+            case STATE_OPEN:
+                if (System.currentTimeMillis() - mOpenedAt >= OPEN_MILLIS) {
+                    Log.d(LOG_TAG, mEndpoint + " is half open, probing it");
+                    mState = STATE_HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                //The probe is still running
+                return false;
+        }
+    }
+
+
+
+    public synchronized void recordSuccess() {
+
+        if (mState != STATE_CLOSED) {
+            Log.d(LOG_TAG, mEndpoint + " is back, closing its breaker");
+        }
+        mState = STATE_CLOSED;
+        mConsecutiveFailures = 0;
+    }
+
+
+
+    public synchronized void recordFailure() {
+
+        mConsecutiveFailures++;
+        if (mState == STATE_HALF_OPEN || mConsecutiveFailures >= FAILURE_THRESHOLD) {
+            if (mState != STATE_OPEN) {
+                Log.e(LOG_TAG, mEndpoint + " failed " + mConsecutiveFailures + " times in a row, opening its breaker");
+            }
+            mState = STATE_OPEN;
+            mOpenedAt = System.currentTimeMillis();
+        }
+    }
+
+
+
+    //A request that ended without telling anything about the endpoint, e.g. because it was cancelled.
+    //If it was the probe, the next request probes again.
+    public synchronized void abandonRequest() {
+
+        if (mState == STATE_HALF_OPEN) {
+            mState = STATE_OPEN;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.dilyar.weather.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent store of the ETag / Last-Modified validators OWM returned for each request url,
+ * so the next request of the same url can be made conditional and answered with 304.
+ *
+ * Validators of a response are only staged when it arrives. They are committed once its data is
+ * saved in the database, otherwise a response that failed to be saved would be skipped forever.
+ */
+public class HttpValidatorStore {
+
+    private static final String PREFS_NAME = "http_validators";
+    private static final String KEY_ETAG_SUFFIX = "|etag";
+    private static final String KEY_LAST_MODIFIED_SUFFIX = "|last_modified";
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private final SharedPreferences mPreferences;
+    //url -> {etag, last modified} of responses that are not saved yet
+    private final ConcurrentHashMap<String, String[]> mStagedValidators = new ConcurrentHashMap<>();
+
+
+
+    public HttpValidatorStore(Context context) {
+
+        mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+
+
+    //Make the request of this url conditional if we have validators for it.
+    public void addValidators(HttpURLConnection urlConnection, String url) {
+
+        String etag = mPreferences.getString(url + KEY_ETAG_SUFFIX, null);
+        String lastModified = mPreferences.getString(url + KEY_LAST_MODIFIED_SUFFIX, null);
+        if (etag != null) {
+            urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+
+
+    //Remember the validators of a 200 response until its data is saved.
+    public void stageValidators(HttpURLConnection urlConnection, String url) {
+
+        String etag = urlConnection.getHeaderField(HEADER_ETAG);
+        String lastModified = urlConnection.getHeaderField(HEADER_LAST_MODIFIED);
+        if (etag == null && lastModified == null) {
+            mStagedValidators.remove(url);
+        } else {
+            mStagedValidators.put(url, new String[]{etag, lastModified});
+        }
+    }
+
+
+
+    public void commitValidators(String url) {
+
+        String[] validators = mStagedValidators.remove(url);
+        if (validators == null) {
+            return;
+        }
+        SharedPreferences.Editor editor = mPreferences.edit();
+        putOrRemove(editor, url + KEY_ETAG_SUFFIX, validators[0]);
+        putOrRemove(editor, url + KEY_LAST_MODIFIED_SUFFIX, validators[1]);
+        editor.apply();
+    }
+
+
+
+    //Forget everything about this url, the next request of it will be unconditional.
+    public void removeValidators(String url) {
+
+        mStagedValidators.remove(url);
+        mPreferences.edit()
+                .remove(url + KEY_ETAG_SUFFIX)
+                .remove(url + KEY_LAST_MODIFIED_SUFFIX)
+                .apply();
+    }
+
+
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+
+        if (value == null) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, value);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.dilyar.weather.app.sync;
+
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Retries OWM requests that failed with SERVER_DOWN, waiting a random time of up to
+ * BASE_DELAY_MILLIS * 2^attempt (capped at MAX_DELAY_MILLIS) between attempts, so cities synced in
+ * parallel don't retry in lockstep. Requests go through the circuit breaker of their endpoint,
+ * which makes them fail fast while the endpoint is down.
+ */
+public class RetryPolicy {
+
+    private static final String LOG_TAG = RetryPolicy.class.getSimpleName();
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BASE_DELAY_MILLIS = 500;
+    private static final long MAX_DELAY_MILLIS = 4 * 1000;
+
+    public interface Request {
+        //Returns the status of the server, SERVER_DOWN if the request should be retried
+        int execute();
+    }
+
+    private final Random mRandom = new Random();
+
+
+
+    public int execute(String endpoint, Request request) {
+
+        EndpointCircuitBreaker breaker = EndpointCircuitBreaker.forEndpoint(endpoint);
+        if (!breaker.allowRequest()) {
+            Log.d(LOG_TAG, endpoint + " is down, not requesting it");
+            return SunshineSyncAdapter.SERVER_DOWN;
+        }
+
+        boolean isRecorded = false;
+        try {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                int status = request.execute();
+                if (status != SunshineSyncAdapter.SERVER_DOWN) {
+                    breaker.recordSuccess();
+                    isRecorded = true;
+                    return status;
+                }
+                if (attempt == MAX_ATTEMPTS - 1) {
+                    break;
+                }
+                long delayMillis = getDelayMillis(attempt);
+                Log.d(LOG_TAG, endpoint + " failed, retrying in " + delayMillis + "ms");
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    //The city was cancelled, this is not the endpoint's fault
+                    Thread.currentThread().interrupt();
+                    return SunshineSyncAdapter.SERVER_DOWN;
+                }
+            }
+
+            breaker.recordFailure();
+            isRecorded = true;
+            return SunshineSyncAdapter.SERVER_DOWN;
+        } finally {
+            if (!isRecorded) {
+                breaker.abandonRequest();
+            }
+        }
+    }
+
+
+
+    private long getDelayMillis(int attempt) {
+
+        long maxDelayMillis = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << attempt);
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * maxDelayMillis);
+        }
+    }
+}
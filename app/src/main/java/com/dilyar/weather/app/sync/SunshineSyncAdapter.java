@@ -3,56 +3,97 @@ package com.dilyar.weather.app.sync;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.content.AbstractThreadedSyncAdapter;
+import android.content.ContentProvider;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SyncResult;
+import android.database.Cursor;
+import android.database.SQLException;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import com.dilyar.weather.app.ForecastFragment;
 import com.dilyar.weather.app.notification.MyNotification;
 import com.dilyar.weather.app.R;
+import com.dilyar.weather.app.data.SyncMetrics;
 import com.dilyar.weather.app.data.WeatherContract;
+import com.dilyar.weather.app.data.WeatherProvider;
+import com.dilyar.weather.app.data.WeatherRowBuffer;
 import com.dilyar.weather.app.server.LeanCloud;
 import com.dilyar.weather.app.utility.Utility;
+import com.dilyar.weather.core.WeatherJsonParser;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements LeanCloud.LeanCloudListener {
 
     public final static String LOG_TAG = com.dilyar.weather.app.sync.SunshineSyncAdapter.class.getSimpleName();
 
 
+    //Sync the requested city even if it was synced within the TTL
+    public static final String SYNC_EXTRAS_FORCE = "sync_extras_force";
+    //When the city sync was requested, it is skipped if another sync saved the city since
+    public static final String SYNC_EXTRAS_REQUESTED_AT = "sync_extras_requested_at";
+
     private static final int IS_SYNCABLE = 1;
     private static final int NOT_SYNCABLE = 0;
 
-    public static final int SERVER_STATUS_OK = 0;
-    public static final int SERVER_DOWN = 1;
-    public static final int SERVER_INVALID_CITY = 2;
+    //The first three are what WeatherJsonParser reads out of a response
+    public static final int SERVER_STATUS_OK = WeatherJsonParser.STATUS_OK;
+    public static final int SERVER_DOWN = WeatherJsonParser.STATUS_SERVER_DOWN;
+    public static final int SERVER_INVALID_CITY = WeatherJsonParser.STATUS_INVALID_CITY;
     public static final int SERVER_UNKNOWN = 3;
     public static final int LOCATION_NULL = 4;
 
+    //A single city is given up if it is not synced in this time, connection timeouts are kept below it
+    private static final long CITY_SYNC_TIMEOUT_MILLIS = 45 * 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 15 * 1000;
+    //Today and future requests of a city run side by side and share this timeout
+    private static final long WEATHER_REQUESTS_TIMEOUT_MILLIS = 40 * 1000;
+    //OWM accepts at most 20 city ids in one "group" request
+    private static final int MAX_GROUP_CITY_IDS = 20;
+    //Daily forecasts change slowly, all cities sync only refreshes them this often
+    private static final long FORECAST_REFRESH_MILLIS = 6 * 60 * 60 * 1000;
+    //Names of the OWM endpoints, each has its own circuit breaker
+    private static final String ENDPOINT_FORECAST = "forecast/daily";
+    private static final String ENDPOINT_WEATHER = "weather";
+    private static final String ENDPOINT_ONE_CALL = "onecall";
+    private static final String ENDPOINT_GROUP = "group";
+    //Returned by the fetch methods instead of a status when OWM answered 304 Not Modified
+    private static final int RESPONSE_NOT_MODIFIED = -1;
+
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({SERVER_STATUS_OK, SERVER_DOWN, SERVER_INVALID_CITY, SERVER_UNKNOWN, LOCATION_NULL})
@@ -66,6 +107,10 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     @LocationStatusCode
     int getServerStatus(Context context) {
 
+        //Whatever the last sync said, OWM is down as long as one of its endpoints is
+        if (EndpointCircuitBreaker.isAnyOpen()) {
+            return SERVER_DOWN;
+        }
         return PreferenceManager.getDefaultSharedPreferences(context).getInt(
                 context.getString(R.string.pref_location_status_key), SERVER_UNKNOWN);
     }
@@ -87,9 +132,19 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
 
 
+    private final HttpValidatorStore mValidatorStore;
+    private final RetryPolicy mRetryPolicy = new RetryPolicy();
+    //Runs the today and future requests of a city at the same time, idle threads go away after a minute
+    private final ExecutorService mRequestExecutor = Executors.newCachedThreadPool();
+    //Photos come from LeanCloud, not from OWM, tests of the OWM sync leave them out
+    private boolean mIsFetchingPhotos = true;
+
+
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
 
         super(context, autoInitialize);
+        mValidatorStore = new HttpValidatorStore(context);
     }
 
 
@@ -200,6 +255,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         ContentResolver.setIsSyncable(account,authority,NOT_SYNCABLE);
 
         ContentResolver.cancelSync(getSyncAccount(context), authority);
+        //Canceled requests never reach onPerformSync, they must not hold back new ones
+        CitySyncRequestCoalescer.clearRequests();
 
     }
 
@@ -207,8 +264,21 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
     public static void syncImmediatelyWithLocationName(Context context, String locationName) {
 
+        syncImmediatelyWithLocationName(context, locationName, false);
+    }
+
+
+
+    public static void syncImmediatelyWithLocationName(Context context, String locationName, boolean force) {
+
+        if (!CitySyncRequestCoalescer.addRequest(locationName, force)) {
+            Log.d(LOG_TAG, "A sync of " + locationName + " is already requested or running, not requesting another one");
+            return;
+        }
         Bundle bundle = new Bundle();
         bundle.putString(ForecastFragment.BUNDLE_KEY_CITY_NAME, locationName);
+        bundle.putBoolean(SYNC_EXTRAS_FORCE, force);
+        bundle.putLong(SYNC_EXTRAS_REQUESTED_AT, System.currentTimeMillis());
 
         syncImmediately(context, bundle);
 
@@ -251,13 +321,27 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         //Check if it is synced manually
         if (inputLocation != null) {
             Log.e(LOG_TAG, "sync city: " + inputLocation);
-            fetchData(inputLocation);
+            //From now on a new request of this city gets a sync of its own
+            CitySyncRequestCoalescer.removeRequest(inputLocation);
+            boolean force = extras.getBoolean(SYNC_EXTRAS_FORCE, false);
+            long requestedAt = extras.getLong(SYNC_EXTRAS_REQUESTED_AT, Long.MAX_VALUE);
+            if (CitySyncRequestCoalescer.isSyncedSince(inputLocation, requestedAt)) {
+                Log.d(LOG_TAG, inputLocation + " was synced by another sync since it was requested, skip syncing it");
+                CitySyncExecutor.recordSkippedCity(syncResult);
+            } else if (!force && isFresh(inputLocation)) {
+                Log.d(LOG_TAG, inputLocation + " is still fresh, skip syncing it");
+                CitySyncExecutor.recordSkippedCity(syncResult);
+            } else {
+                fetchCity(inputLocation, syncResult);
+            }
         } else {
             Log.e(LOG_TAG, "No input location. Start the process of syncing automatically");
-            fetchDataAutomatically(getContext());
+            fetchDataAutomatically(getContext(), syncResult);
 
         }
 
+        getContext().getContentResolver().notifyChange(WeatherContract.SYNC_FINISHED_URI, null, false);
+
         boolean isSyncingManually = Utility.getSyncFrequencyInHour(getContext()).equals(getContext().getString(R.string.pref_data_sync_manually));
         if (isSyncingManually) {
             ContentResolver.setIsSyncable(account,authority,NOT_SYNCABLE);
@@ -266,22 +350,23 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
 
 
-    private void fetchDataAutomatically(Context context) {
+    private void fetchDataAutomatically(Context context, final SyncResult syncResult) {
 
         boolean updateAllCities = Utility.isUpdatingAllCities(context);
         if (updateAllCities) {
-            //Need to fetch all cities data
+            //Need to fetch all cities data, several cities at a time
             List<String> cities = Utility.getAllCityNamesFromSP(context);
             if (cities != null) {
-                for (String cityName : cities) {
-                    fetchData(cityName);
-                }
+                fetchAllCities(context, cities, syncResult);
             }
         } else {
             //Fetch notification city's data
             String notificationCity = Utility.getNotificationCity(context);
-            if (notificationCity != null) {
-                fetchData(notificationCity);
+            if (notificationCity != null && isFresh(notificationCity)) {
+                Log.d(LOG_TAG, notificationCity + " is still fresh, skip syncing it");
+                CitySyncExecutor.recordSkippedCity(syncResult);
+            } else if (notificationCity != null) {
+                fetchCity(notificationCity, syncResult);
             } else {
                 Log.e(LOG_TAG, "notification city is null, fetchDataAutomatically returned doing nothing");
             }
@@ -292,147 +377,770 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
 
 
+    //Fetch a single city, unless another sync is fetching it right now. Either way it is recorded in syncResult.
+    private void fetchCity(String inputLocationName, SyncResult syncResult) {
+
+        if (!CitySyncRequestCoalescer.beginSync(inputLocationName)) {
+            Log.d(LOG_TAG, inputLocationName + " is being synced already, skip syncing it");
+            CitySyncExecutor.recordSkippedCity(syncResult);
+            return;
+        }
+        int status = SERVER_UNKNOWN;
+        try {
+            status = fetchData(inputLocationName, syncResult);
+        } finally {
+            CitySyncRequestCoalescer.endSync(inputLocationName, status == SERVER_STATUS_OK);
+        }
+        CitySyncExecutor.recordCityResult(syncResult, status);
+    }
+
+
+
     /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param inputLocationName Name identifying cities in database
-     * @param cityName          Formal City Name from OpenWeatherMap API
-     * @param lat               the latitude of the city
-     * @param lon               the longitude of the city
-     * @return the row ID of the added location.
+     * Sync all cities with as few requests as possible. Current weather of cities OWM already gave us an id for
+     * is fetched in batches with "group" requests, so only daily forecasts that are due for refresh and cities
+     * that are not resolved yet need a request of their own. With one-call a city with coordinates whose forecast
+     * is due is left out of the groups, it gets both in one "onecall" request. Cities synced within the TTL are skipped, and so are
+     * cities another sync is fetching right now. Requests of a city made while it is synced here are coalesced
+     * with this sync, see CitySyncRequestCoalescer.
      */
-    long checkLocation(String inputLocationName, String cityName, double lat, double lon) {
+    @VisibleForTesting
+    void fetchAllCities(Context context, List<String> cities, final SyncResult syncResult) {
+
+        final Map<String, SavedLocation> savedLocations = getSavedLocations(context);
+        final long currentTime = System.currentTimeMillis();
+        long ttlMillis = Utility.getSyncTtlMillis(context);
+        boolean isUsingOneCall = Utility.isUsingOneCall(context);
+        List<String> dueCities = new ArrayList<>();
+        List<SavedLocation> resolvedLocations = new ArrayList<>();
+        for (String city : cities) {
+            SavedLocation savedLocation = savedLocations.get(city);
+            if (savedLocation != null && currentTime - savedLocation.lastSynced < ttlMillis) {
+                CitySyncExecutor.recordSkippedCity(syncResult);
+                continue;
+            }
+            if (!CitySyncRequestCoalescer.beginSync(city)) {
+                Log.d(LOG_TAG, city + " is being synced already, skip syncing it");
+                CitySyncExecutor.recordSkippedCity(syncResult);
+                continue;
+            }
+            dueCities.add(city);
+            //A due forecast of a city with coordinates comes with its current weather in one "onecall" request,
+            //asking the group for it too would be a second round trip
+            boolean isOneCallDue = isUsingOneCall && savedLocation != null && savedLocation.hasCoordinates
+                    && currentTime - savedLocation.forecastSynced >= FORECAST_REFRESH_MILLIS;
+            if (savedLocation != null && savedLocation.owmCityId != 0 && !isOneCallDue) {
+                resolvedLocations.add(savedLocation);
+            }
+        }
+        Log.d(LOG_TAG, (cities.size() - dueCities.size()) + " of " + cities.size() + " cities are still fresh");
 
-        //Check if user wants to download images:
-//        boolean downloadImages = Utility.getDownLoadImagesPref(Context);
-        //Fetch Photos by sending formal city name
-        fetchCityPhotos(cityName);
+        try {
+            //Cities missing in here still need their current weather
+            final Map<String, Integer> currentStatus = new HashMap<>();
+            for (int i = 0; i < resolvedLocations.size(); i += MAX_GROUP_CITY_IDS) {
+                List<SavedLocation> group = resolvedLocations.subList(i, Math.min(i + MAX_GROUP_CITY_IDS, resolvedLocations.size()));
+                fetchGroupWeatherData(group, currentStatus, syncResult);
+            }
 
-        long locationId = WeatherContract.LocationEntry.getInputLocationId(getContext(), inputLocationName);
+            CitySyncExecutor executor = new CitySyncExecutor(
+                    Utility.getMaxParallelCitySyncs(context), CITY_SYNC_TIMEOUT_MILLIS);
+            executor.syncCities(dueCities, new CitySyncExecutor.CitySyncTask() {
+
+                @Override
+                public int syncCity(String inputLocationName) {
+
+                    int status = SERVER_UNKNOWN;
+                    try {
+                        status = syncDueCity(inputLocationName);
+                    } finally {
+                        CitySyncRequestCoalescer.endSync(inputLocationName, status == SERVER_STATUS_OK);
+                    }
+                    return status;
+                }
 
-        if (locationId == 0) {
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
 
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME, inputLocationName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
 
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
+                private int syncDueCity(String inputLocationName) {
 
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+                    Integer status = currentStatus.get(inputLocationName);
+                    if (status == null) {
+                        return fetchData(inputLocationName, syncResult);
+                    }
+                    if (status != SERVER_STATUS_OK) {
+                        return status;
+                    }
+                    SavedLocation savedLocation = savedLocations.get(inputLocationName);
+                    if (currentTime - savedLocation.forecastSynced < FORECAST_REFRESH_MILLIS) {
+                        return SERVER_STATUS_OK;
+                    }
+                    //Also with one-call, a city that got here has no coordinates for a "onecall" request yet
+                    return fetchForecastData(inputLocationName, savedLocation.locationId, syncResult);
+                }
+            }, syncResult);
+        } finally {
+            //Cities whose task timed out or never ran are not being synced anymore either
+            for (String city : dueCities) {
+                CitySyncRequestCoalescer.endSync(city, false);
+            }
         }
+    }
+
 
-        return locationId;
+
+    //What all cities sync needs to know about a saved location
+    private static class SavedLocation {
+        String inputLocationName;
+        long locationId;
+        long owmCityId;
+        long forecastSynced;
+        long lastSynced;
+        boolean hasCoordinates;
+    }
+
+
+
+    private Map<String, SavedLocation> getSavedLocations(Context context) {
+
+        Map<String, SavedLocation> savedLocations = new HashMap<>();
+        Cursor locationCursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME,
+                        WeatherContract.LocationEntry.COLUMN_OWM_CITY_ID,
+                        WeatherContract.LocationEntry.COLUMN_FORECAST_SYNCED,
+                        WeatherContract.LocationEntry.COLUMN_LAST_SYNCED,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LONG},
+                null,
+                null,
+                null);
+        if (locationCursor == null) {
+            return savedLocations;
+        }
+        try {
+            while (locationCursor.moveToNext()) {
+                SavedLocation savedLocation = new SavedLocation();
+                savedLocation.locationId = locationCursor.getLong(0);
+                savedLocation.inputLocationName = locationCursor.getString(1);
+                savedLocation.owmCityId = locationCursor.getLong(2);
+                savedLocation.forecastSynced = locationCursor.getLong(3);
+                savedLocation.lastSynced = locationCursor.getLong(4);
+                savedLocation.hasCoordinates = !locationCursor.isNull(5) && !locationCursor.isNull(6);
+                savedLocations.put(savedLocation.inputLocationName, savedLocation);
+            }
+        } finally {
+            locationCursor.close();
+        }
+        return savedLocations;
     }
 
 
 
-    private void fetchData(String inputLocationName) {
+    //True if the current weather of this city was synced within the TTL
+    private boolean isFresh(String inputLocationName) {
+
+        Cursor locationCursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LAST_SYNCED},
+                WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME + " = ?",
+                new String[]{inputLocationName},
+                null);
+        if (locationCursor == null) {
+            return false;
+        }
+        try {
+            return locationCursor.moveToFirst() &&
+                    System.currentTimeMillis() - locationCursor.getLong(0) < Utility.getSyncTtlMillis(getContext());
+        } finally {
+            locationCursor.close();
+        }
+    }
+
 
-        final String OWM_BASE_URL_FUTURE = "http://api.openweathermap.org/data/2.5/forecast/daily?";
-        final String OWM_BASE_URL_TODAY = "http://api.openweathermap.org/data/2.5/weather?";
+
+    /**
+     * Helper method to build a new location for the weather database.
+     *
+     * @param inputLocationName Name identifying cities in database
+     * @param todayWeather      Today weather of the city, with its formal city name and coordinates from OpenWeatherMap API
+     * @return the values of the location row.
+     */
+    private ContentValues buildLocationValues(String inputLocationName, WeatherJsonParser.TodayWeather todayWeather) {
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, todayWeather.cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME, inputLocationName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, todayWeather.lat);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, todayWeather.lon);
+        return locationValues;
+    }
+
+
+
+    @LocationStatusCode
+    private int fetchData(String inputLocationName, SyncResult syncResult) {
+
+        if (Utility.isUsingOneCall(getContext())) {
+            double[] coordinates = WeatherContract.LocationEntry.getInputLocationCoordinates(getContext(), inputLocationName);
+            if (coordinates != null) {
+                final String LAT_PARAM = "lat";
+                final String LON_PARAM = "lon";
+                String oneCallUrl = buildOwmUri(getContext(), ENDPOINT_ONE_CALL).buildUpon()
+                        .appendQueryParameter(LAT_PARAM, Double.toString(coordinates[0]))
+                        .appendQueryParameter(LON_PARAM, Double.toString(coordinates[1]))
+                        .build()
+                        .toString();
+                return fetchOneCallWeatherData(oneCallUrl, inputLocationName, syncResult);
+            }
+            //Not resolved yet, the two requests below save its coordinates for the next sync
+            Log.d(LOG_TAG, inputLocationName + " has no coordinates yet, fetching with two requests");
+        }
 
         final String QUERY_PARAM = "q";
-        String futureWeatherUrl = Uri.parse(OWM_BASE_URL_FUTURE).buildUpon()
+        String futureWeatherUrl = buildFutureWeatherUrl(getContext(), inputLocationName);
+        String todayWeatherUrl = buildOwmUri(getContext(), ENDPOINT_WEATHER).buildUpon()
                 .appendQueryParameter(QUERY_PARAM, inputLocationName)
                 .build()
                 .toString();
-        String todayWeatherUrl = Uri.parse(OWM_BASE_URL_TODAY).buildUpon()
+        return fetchWeatherData(futureWeatherUrl, todayWeatherUrl, inputLocationName, syncResult);
+
+    }
+
+
+
+    private static String buildFutureWeatherUrl(Context context, String inputLocationName) {
+
+        final String QUERY_PARAM = "q";
+        return buildOwmUri(context, ENDPOINT_FORECAST).buildUpon()
                 .appendQueryParameter(QUERY_PARAM, inputLocationName)
                 .build()
                 .toString();
-        fetchWeatherData(futureWeatherUrl, todayWeatherUrl, inputLocationName);
+    }
+
 
+
+    //Uri of an OWM endpoint under the configured base url, so sync can be pointed at a local server
+    private static Uri buildOwmUri(Context context, String endpoint) {
+
+        return Uri.parse(Utility.getOwmBaseUrl(context)).buildUpon()
+                .appendEncodedPath(endpoint)
+                .build();
     }
 
 
 
     /**
      * HTTP request to fetch  weather information and city photos.
+     *
+     * @return the status of the server for this city.
      */
-    private void fetchWeatherData(String futureUrl, String todayUrl, String inputLocationName) {
+    @LocationStatusCode
+    private int fetchWeatherData(final String futureUrl, final String todayUrl, String inputLocationName, SyncResult syncResult) {
+
+        final WeatherRowBuffer futureRows = new WeatherRowBuffer();
+        final WeatherJsonParser.TodayWeather todayWeather = new WeatherJsonParser.TodayWeather();
 
-        String futureWeatherJsonStr = fetchFutureWeather(futureUrl);
-        String todayWeatherJsonStr = fetchTodayWeather(todayUrl);
+        CompletionService<Integer> requests = new ExecutorCompletionService<>(mRequestExecutor);
+        Future<Integer> futureRequest = requests.submit(new Callable<Integer>() {
 
-        if (futureWeatherJsonStr.length() > 0 && todayWeatherJsonStr.length() > 0) {
+            @Override
+            public Integer call() throws Exception {
 
-            Vector<ContentValues> cvVector = parseWeatherJson(todayWeatherJsonStr, futureWeatherJsonStr, inputLocationName);
-            if (cvVector != null) {
-                saveWeatherData(cvVector,inputLocationName);
+                return fetchFutureWeather(futureUrl, futureRows);
             }
+        });
+        Future<Integer> todayRequest = requests.submit(new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
 
+                return fetchTodayWeather(todayUrl, todayWeather);
+            }
+        });
+
+        int failedStatus = awaitWeatherRequests(requests, futureRequest, todayRequest, inputLocationName);
+        if (failedStatus != SERVER_STATUS_OK) {
+            setServerStatus(getContext(), failedStatus, false);
+            return failedStatus;
+        }
+        int futureStatus = getRequestStatus(futureRequest);
+        int todayStatus = getRequestStatus(todayRequest);
+
+        //A 304 only means something while we still have the data, e.g. not after the database is recreated
+        if ((futureStatus == RESPONSE_NOT_MODIFIED || todayStatus == RESPONSE_NOT_MODIFIED) &&
+                WeatherContract.LocationEntry.getInputLocationId(getContext(), inputLocationName) == 0) {
+            if (futureStatus == RESPONSE_NOT_MODIFIED) {
+                mValidatorStore.removeValidators(futureUrl);
+                futureStatus = fetchFutureWeather(futureUrl, futureRows);
+            }
+            if (todayStatus == RESPONSE_NOT_MODIFIED) {
+                mValidatorStore.removeValidators(todayUrl);
+                todayStatus = fetchTodayWeather(todayUrl, todayWeather);
+            }
         }
-    }
 
+        //Nothing changed since last sync, the saved data is still up to date
+        if (futureStatus == RESPONSE_NOT_MODIFIED && todayStatus == RESPONSE_NOT_MODIFIED) {
+            Log.d(LOG_TAG, inputLocationName + " is not modified since last sync");
+            updateLocationSyncInfo(WeatherContract.LocationEntry.getInputLocationId(getContext(), inputLocationName), 0, true, true);
+            setServerStatus(getContext(), SERVER_STATUS_OK, false);
+            notifyUnchangedWeather(inputLocationName);
+            return SERVER_STATUS_OK;
+        }
 
+        //Check error message from server
+        int status = todayStatus == RESPONSE_NOT_MODIFIED ? SERVER_STATUS_OK : todayStatus;
+        if (status == SERVER_STATUS_OK && futureStatus != RESPONSE_NOT_MODIFIED) {
+            status = futureStatus;
+        }
+        if (status != SERVER_STATUS_OK) {
+            setServerStatus(getContext(), status, false);
+            return status;
+        }
 
-    private void saveWeatherData(Vector<ContentValues> cVVector, String inputLocation) {
+        WeatherRowBuffer weatherRows = new WeatherRowBuffer();
+        //If today is not modified, the location is already saved
+        long locationId = WeatherContract.LocationEntry.getInputLocationId(getContext(), inputLocationName);
+        ContentValues newLocationValues = null;
+        if (todayStatus == SERVER_STATUS_OK) {
+            //Fetch Photos by sending formal city name
+            fetchCityPhotos(todayWeather.cityName);
+            if (locationId == 0) {
+                newLocationValues = buildLocationValues(inputLocationName, todayWeather);
+            }
+            addTodayRow(weatherRows, todayWeather);
+        }
+        if (futureStatus == SERVER_STATUS_OK) {
+            weatherRows.addAll(futureRows);
+        }
+        ContentValues locationSyncValues = buildLocationSyncValues(
+                todayStatus == SERVER_STATUS_OK ? todayWeather.cityId : 0, true, true);
+        if (!saveWeatherData(weatherRows, inputLocationName, locationId, newLocationValues, locationSyncValues, syncResult)) {
+            return SERVER_UNKNOWN;
+        }
 
+        //Only now the next request of these urls can be answered with 304
+        if (todayStatus == SERVER_STATUS_OK) {
+            mValidatorStore.commitValidators(todayUrl);
+        }
+        if (futureStatus == SERVER_STATUS_OK) {
+            mValidatorStore.commitValidators(futureUrl);
+        }
+        return SERVER_STATUS_OK;
+    }
 
-        int inserted;
 
-        // Insert into database
-        if (cVVector.size() > 0) {
-            ContentValues[] cvArray = new ContentValues[cVVector.size()];
-            cVVector.toArray(cvArray);
 
-            ContentValues values = cvArray[0];
+    /**
+     * Wait for both requests of a city. The first one that fails, or running out of the shared timeout,
+     * cancels the other one.
+     *
+     * @return SERVER_STATUS_OK if both requests answered with data or 304, otherwise the status to give up with.
+     */
+    @LocationStatusCode
+    private int awaitWeatherRequests(CompletionService<Integer> requests, Future<Integer> futureRequest,
+                                     Future<Integer> todayRequest, String inputLocationName) {
+
+        long deadline = SystemClock.elapsedRealtime() + WEATHER_REQUESTS_TIMEOUT_MILLIS;
+        try {
+            for (int i = 0; i < 2; i++) {
+                Future<Integer> request = requests.poll(deadline - SystemClock.elapsedRealtime(), TimeUnit.MILLISECONDS);
+                if (request == null) {
+                    Log.e(LOG_TAG, "Requests of " + inputLocationName + " timed out after " + WEATHER_REQUESTS_TIMEOUT_MILLIS + "ms");
+                    return SERVER_DOWN;
+                }
+                int status = request.get();
+                if (status != SERVER_STATUS_OK && status != RESPONSE_NOT_MODIFIED) {
+                    return status;
+                }
+            }
+            return SERVER_STATUS_OK;
+
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Request of " + inputLocationName + " failed", e.getCause());
+            return SERVER_UNKNOWN;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return SERVER_DOWN;
+        } finally {
+            //No-op for a request that is done already
+            futureRequest.cancel(true);
+            todayRequest.cancel(true);
+        }
+    }
+
 
-//            if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
-            long firstDateInValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
 
+    //Status of a request awaitWeatherRequests has seen completing
+    private static int getRequestStatus(Future<Integer> request) {
 
+        try {
+            return request.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Request is not done", e);
+        }
+    }
 
-            Uri weatherUriWithStartDate = WeatherContract.WeatherEntry.buildWeatherLocationWithDateInQueryParameter(inputLocation, firstDateInValue);
 
-            inserted = getContext().getContentResolver().bulkInsert(weatherUriWithStartDate, cvArray);
 
+    /**
+     * HTTP request to fetch today and future weather information of an already saved location
+     * with a single coordinate based request.
+     *
+     * @return the status of the server for this city.
+     */
+    @LocationStatusCode
+    private int fetchOneCallWeatherData(String oneCallUrl, String inputLocationName, SyncResult syncResult) {
 
-            // delete old data of this syncing city to avoid building up an endless history
-            long yesterdayInJulianFormat = WeatherContract.getPreviousJulianDate(System.currentTimeMillis());
+        WeatherRowBuffer futureRows = new WeatherRowBuffer();
+        WeatherJsonParser.TodayWeather todayWeather = new WeatherJsonParser.TodayWeather();
 
-            getContext().getContentResolver().delete(
-                    WeatherContract.WeatherEntry.buildWeatherLocationWithDateInQueryParameter(inputLocation, yesterdayInJulianFormat),
-                    null,
-                    null);
+        int status = fetchOneCallWeather(oneCallUrl, todayWeather, futureRows);
 
+        //Nothing changed since last sync, the saved data is still up to date
+        if (status == RESPONSE_NOT_MODIFIED) {
+            Log.d(LOG_TAG, inputLocationName + " is not modified since last sync");
+            updateLocationSyncInfo(WeatherContract.LocationEntry.getInputLocationId(getContext(), inputLocationName), 0, true, true);
             setServerStatus(getContext(), SERVER_STATUS_OK, false);
+            notifyUnchangedWeather(inputLocationName);
+            return SERVER_STATUS_OK;
+        }
+        if (status != SERVER_STATUS_OK) {
+            setServerStatus(getContext(), status, false);
+            return status;
+        }
 
-            Log.d(LOG_TAG, "FetchWeatherTask Complete. " + inserted + " Inserted");
+        long locationId = WeatherContract.LocationEntry.getInputLocationId(getContext(), inputLocationName);
+        WeatherRowBuffer weatherRows = new WeatherRowBuffer();
+        addTodayRow(weatherRows, todayWeather);
+        weatherRows.addAll(futureRows);
+        if (!saveWeatherData(weatherRows, inputLocationName, locationId, null,
+                buildLocationSyncValues(0, true, true), syncResult)) {
+            return SERVER_UNKNOWN;
         }
 
-        MyNotification.notifyWeather(getContext(), inputLocation);
+        //Only now the next request of this url can be answered with 304
+        mValidatorStore.commitValidators(oneCallUrl);
+        return SERVER_STATUS_OK;
+    }
+
+
 
+    /**
+     * HTTP request to refresh only the daily forecast of an already saved location,
+     * its current weather comes from a "group" request.
+     *
+     * @return the status of the server for this city.
+     */
+    @LocationStatusCode
+    private int fetchForecastData(String inputLocationName, long locationId, SyncResult syncResult) {
+
+        String futureUrl = buildFutureWeatherUrl(getContext(), inputLocationName);
+        WeatherRowBuffer futureRows = new WeatherRowBuffer();
+        int status = fetchFutureWeather(futureUrl, futureRows);
+
+        if (status == RESPONSE_NOT_MODIFIED) {
+            Log.d(LOG_TAG, inputLocationName + " forecast is not modified since last sync");
+            updateLocationSyncInfo(locationId, 0, false, true);
+            notifyUnchangedWeather(inputLocationName);
+            return SERVER_STATUS_OK;
+        }
+        if (status != SERVER_STATUS_OK) {
+            setServerStatus(getContext(), status, false);
+            return status;
+        }
+
+        if (!saveWeatherData(futureRows, inputLocationName, locationId, null,
+                buildLocationSyncValues(0, false, true), syncResult)) {
+            return SERVER_UNKNOWN;
+        }
+        mValidatorStore.commitValidators(futureUrl);
+        return SERVER_STATUS_OK;
     }
 
 
 
     /**
-     * HTTP request to fetch future weather information.
+     * HTTP request to fetch current weather of several saved locations at once and save it.
+     * The status of every city of the group that was answered is put into currentStatus,
+     * cities OWM left out are not.
      */
-    private String fetchFutureWeather(String futureUrl) {
+    private void fetchGroupWeatherData(List<SavedLocation> group, Map<String, Integer> currentStatus, SyncResult syncResult) {
 
-        String futureJsonString = "";
+        final Map<Long, WeatherJsonParser.TodayWeather> groupWeather = new HashMap<>();
+        StringBuilder cityIds = new StringBuilder();
+        for (SavedLocation savedLocation : group) {
+            if (cityIds.length() > 0) {
+                cityIds.append(',');
+            }
+            cityIds.append(savedLocation.owmCityId);
+        }
 
-        if (futureUrl.length() == 0) {
-            return futureJsonString;
+        final String cityIdsParam = cityIds.toString();
+        int status = mRetryPolicy.execute(ENDPOINT_GROUP, new RetryPolicy.Request() {
+
+            @Override
+            public int execute() {
+
+                return requestGroupWeather(cityIdsParam, groupWeather);
+            }
+        });
+
+        if (status == SERVER_INVALID_CITY) {
+            //One bad id should not fail the others, let every city of this group be fetched by its name
+            return;
+        }
+        for (SavedLocation savedLocation : group) {
+            if (status != SERVER_STATUS_OK) {
+                currentStatus.put(savedLocation.inputLocationName, status);
+                continue;
+            }
+            WeatherJsonParser.TodayWeather todayWeather = groupWeather.get(savedLocation.owmCityId);
+            if (todayWeather != null) {
+                WeatherRowBuffer weatherRows = new WeatherRowBuffer();
+                addTodayRow(weatherRows, todayWeather);
+                boolean isSaved = saveWeatherData(weatherRows, savedLocation.inputLocationName, savedLocation.locationId, null,
+                        buildLocationSyncValues(0, true, false), syncResult);
+                currentStatus.put(savedLocation.inputLocationName, isSaved ? SERVER_STATUS_OK : SERVER_UNKNOWN);
+            }
         }
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
+    }
+
+
+
+    //HTTP request to the "group" endpoint, the today weather of every answered city is put into groupWeather by its OWM id.
+    private int requestGroupWeather(String cityIds, final Map<Long, WeatherJsonParser.TodayWeather> groupWeather) {
+
+        groupWeather.clear();
+
+        // This needs to be declared outside the try/catch
+        // so that it can be closed in the finally block.
         HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
 
-        // Will contain the raw JSON response as a string.
+        final String ID_PARAM = "id";
+        final String UNITS_PARAM = "units";
+        final String APPID_PARAM = "APPID";
+
+        try {
+            Uri builtUri = buildOwmUri(getContext(), ENDPOINT_GROUP).buildUpon()
+                    .appendQueryParameter(ID_PARAM, cityIds)
+                    .appendQueryParameter(UNITS_PARAM, "metric")
+                    .appendQueryParameter(APPID_PARAM, "8ad21085b684a314bdcd9f12a3399e21")
+                    .build();
+
+            URL finalUrl = new URL(builtUri.toString());
+            Log.d(LOG_TAG, "fetching group weather...  URL: " + finalUrl);
+
+            urlConnection = (HttpURLConnection) finalUrl.openConnection();
+            urlConnection.setRequestMethod("GET");
+            urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            long connectStart = SystemClock.elapsedRealtime();
+            urlConnection.connect();
+
+            int responseCode = urlConnection.getResponseCode();
+            SyncMetrics.record(SyncMetrics.PHASE_CONNECT, SystemClock.elapsedRealtime() - connectStart, 0);
+            // OWM explains errors with a "cod" in the body of the error response
+            InputStream inputStream = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                    urlConnection.getErrorStream() : urlConnection.getInputStream();
+            if (inputStream == null) {
+                return responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                        WeatherJsonParser.getStatus(responseCode) : SERVER_DOWN;
+            }
+            SyncMetrics.MeteredInputStream meteredStream = new SyncMetrics.MeteredInputStream(inputStream);
+            long parseStart = SystemClock.elapsedRealtime();
+            int status = WeatherJsonParser.parseGroup(meteredStream, new WeatherJsonParser.TodayWeatherHandler() {
+
+                @Override
+                public void onTodayWeather(WeatherJsonParser.TodayWeather today) {
+
+                    groupWeather.put(today.cityId, today);
+                }
+            });
+            SyncMetrics.recordResponse(meteredStream, SystemClock.elapsedRealtime() - parseStart);
+            return status;
+
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            return SERVER_DOWN;
+
+        } finally {
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+
+
+    //Remember what the next all cities sync needs to know about this location
+    private void updateLocationSyncInfo(long locationId, long owmCityId, boolean currentSaved, boolean forecastSaved) {
+
+        ContentValues locationValues = buildLocationSyncValues(owmCityId, currentSaved, forecastSaved);
+        if (locationValues.size() == 0) {
+            return;
+        }
+        getContext().getContentResolver().update(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                locationValues,
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)});
+    }
+
+
+
+    private ContentValues buildLocationSyncValues(long owmCityId, boolean currentSaved, boolean forecastSaved) {
+
+        ContentValues locationValues = new ContentValues();
+        long currentTime = System.currentTimeMillis();
+        if (owmCityId != 0) {
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_OWM_CITY_ID, owmCityId);
+        }
+        if (currentSaved) {
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LAST_SYNCED, currentTime);
+        }
+        if (forecastSaved) {
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_FORECAST_SYNCED, currentTime);
+        }
+        return locationValues;
+    }
+
+
+
+    /**
+     * Save the weather of one city in one transaction: the new location, the weather rows, the removal of old
+     * history and the sync info of the location, with one change notification.
+     * Weather rows get their location key there, either locationId or the id of the inserted newLocationValues.
+     * WeatherProvider runs in the process of the sync adapter, the manifest gives neither of them a process
+     * of its own, so the rows are handed to its saveWeather as they are instead of as ContentValues.
+     * If the provider ever moves to another process, nothing is saved and the error is logged.
+     *
+     * @return true if the weather is saved.
+     */
+    private boolean saveWeatherData(WeatherRowBuffer weatherRows, String inputLocation, long locationId,
+                                    ContentValues newLocationValues, ContentValues locationSyncValues, SyncResult syncResult) {
+
+        if (weatherRows.isEmpty()) {
+            return true;
+        }
+        if (locationId == 0 && newLocationValues == null) {
+            Log.e(LOG_TAG, inputLocation + " is not saved, there is nothing to attach its weather to");
+            return false;
+        }
+
+        long yesterdayInJulianFormat = WeatherContract.getPreviousJulianDate(System.currentTimeMillis());
+        int[] savedCounts;
+        long writeStart = SystemClock.elapsedRealtime();
+        ContentProviderClient providerClient =
+                getContext().getContentResolver().acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        try {
+            ContentProvider localProvider = providerClient != null ? providerClient.getLocalContentProvider() : null;
+            if (!(localProvider instanceof WeatherProvider)) {
+                Log.e(LOG_TAG, inputLocation + " is not saved, WeatherProvider is not running in this process");
+                return false;
+            }
+            savedCounts = ((WeatherProvider) localProvider).saveWeather(inputLocation, locationId, newLocationValues,
+                    weatherRows, yesterdayInJulianFormat, locationSyncValues);
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Saving weather of " + inputLocation + " failed", e);
+            return false;
+        } finally {
+            if (providerClient != null) {
+                providerClient.release();
+            }
+        }
+        SyncMetrics.record(SyncMetrics.PHASE_DB_WRITE, SystemClock.elapsedRealtime() - writeStart, 0);
+
+        int inserted = savedCounts[0];
+        int deleted = savedCounts[1];
+        synchronized (syncResult) {
+            syncResult.stats.numInserts += inserted;
+            syncResult.stats.numDeletes += deleted;
+        }
+
+        setServerStatus(getContext(), SERVER_STATUS_OK, false);
+
+        Log.d(LOG_TAG, "FetchWeatherTask Complete. " + inserted + " Inserted");
+
+        long notificationStart = SystemClock.elapsedRealtime();
+        MyNotification.notifyWeather(getContext(), inputLocation, inserted > 0);
+        SyncMetrics.record(SyncMetrics.PHASE_NOTIFICATION, SystemClock.elapsedRealtime() - notificationStart, 0);
+        return true;
+    }
+
+
+
+    //A 304 saves nothing, but the saved weather is still today's weather and the daily notification needs it too
+    private void notifyUnchangedWeather(String inputLocationName) {
+
+        long notificationStart = SystemClock.elapsedRealtime();
+        MyNotification.notifyWeather(getContext(), inputLocationName, false);
+        SyncMetrics.record(SyncMetrics.PHASE_NOTIFICATION, SystemClock.elapsedRealtime() - notificationStart, 0);
+    }
+
+
+
+    //The fetch methods below retry failed requests and fail fast while their endpoint is down.
+    private int fetchFutureWeather(final String futureUrl, final WeatherRowBuffer futureRows) {
+
+        return mRetryPolicy.execute(ENDPOINT_FORECAST, new RetryPolicy.Request() {
+
+            @Override
+            public int execute() {
+
+                return requestFutureWeather(futureUrl, futureRows);
+            }
+        });
+    }
+
+
+
+    private int fetchTodayWeather(final String url, final WeatherJsonParser.TodayWeather todayWeather) {
+
+        return mRetryPolicy.execute(ENDPOINT_WEATHER, new RetryPolicy.Request() {
+
+            @Override
+            public int execute() {
+
+                return requestTodayWeather(url, todayWeather);
+            }
+        });
+    }
+
+
+
+    private int fetchOneCallWeather(final String oneCallUrl, final WeatherJsonParser.TodayWeather todayWeather,
+                                    final WeatherRowBuffer futureRows) {
+
+        return mRetryPolicy.execute(ENDPOINT_ONE_CALL, new RetryPolicy.Request() {
+
+            @Override
+            public int execute() {
+
+                return requestOneCallWeather(oneCallUrl, todayWeather, futureRows);
+            }
+        });
+    }
+
+
+
+    /**
+     * HTTP request to fetch future weather information.
+     * The response is parsed while it is downloaded, every day except today becomes a row of futureRows,
+     * still without its location key.
+     *
+     * @return the status of the server, or RESPONSE_NOT_MODIFIED if OWM answered 304 Not Modified.
+     */
+    private int requestFutureWeather(String futureUrl, final WeatherRowBuffer futureRows) {
+
+        futureRows.clear();
+        if (futureUrl.length() == 0) {
+            return SERVER_INVALID_CITY;
+        }
+        // This needs to be declared outside the try/catch
+        // so that it can be closed in the finally block.
+        HttpURLConnection urlConnection = null;
 
         String format = "json";
         String units = "metric";
@@ -461,73 +1169,82 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
             // Create the request to OpenWeatherMap, and open the connection
             urlConnection = (HttpURLConnection) finalUrl.openConnection();
             urlConnection.setRequestMethod("GET");
+            urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            mValidatorStore.addValidators(urlConnection, futureUrl);
+            long connectStart = SystemClock.elapsedRealtime();
             urlConnection.connect();
 
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
+            int responseCode = urlConnection.getResponseCode();
+            SyncMetrics.record(SyncMetrics.PHASE_CONNECT, SystemClock.elapsedRealtime() - connectStart, 0);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(LOG_TAG, "future weather not modified. URL: " + finalUrl);
+                return RESPONSE_NOT_MODIFIED;
+            }
+
+            // OWM explains errors with a "cod" in the body of the error response
+            InputStream inputStream = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                    urlConnection.getErrorStream() : urlConnection.getInputStream();
             if (inputStream == null) {
                 // Nothing to do.
-                setServerStatus(getContext(), SERVER_DOWN, false);
-                return futureJsonString;
+                return responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                        WeatherJsonParser.getStatus(responseCode) : SERVER_DOWN;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+            final long currentTime = System.currentTimeMillis();
+            SyncMetrics.MeteredInputStream meteredStream = new SyncMetrics.MeteredInputStream(inputStream);
+            long parseStart = SystemClock.elapsedRealtime();
+            int status = WeatherJsonParser.parseForecast(meteredStream, new WeatherJsonParser.ForecastDayHandler() {
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setServerStatus(getContext(), SERVER_DOWN, false);
-                return futureJsonString;
+                @Override
+                public void onForecastDay(int dayIndex, WeatherJsonParser.ForecastDay day) {
+
+                    //The first day of the list is today, which comes from today weather instead.
+                    if (dayIndex > 0) {
+                        addFutureRow(futureRows, day, WeatherContract.getNextNumberNJulianDate(currentTime, dayIndex));
+                    }
+                }
+            });
+            SyncMetrics.recordResponse(meteredStream, SystemClock.elapsedRealtime() - parseStart);
+            if (status == SERVER_STATUS_OK && futureRows.isEmpty()) {
+                // Stream was empty.
+                status = SERVER_DOWN;
+            }
+            if (status == SERVER_STATUS_OK) {
+                mValidatorStore.stageValidators(urlConnection, futureUrl);
             }
-            //Fetch Today Weather
-            futureJsonString = buffer.toString();
+            return status;
 
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
             // If the code didn't successfully get the weather data, there's no point in attempting
             // to parse it.
-
-            setServerStatus(getContext(), SERVER_DOWN, false);
+            return SERVER_DOWN;
 
         } finally {
             if (urlConnection != null) {
                 urlConnection.disconnect();
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
-            }
         }
-
-        return futureJsonString;
     }
 
 
 
-    private String fetchTodayWeather(String url) {
+    /**
+     * HTTP request to fetch today weather information, parsed into todayWeather while it is downloaded.
+     *
+     * @return the status of the server, or RESPONSE_NOT_MODIFIED if OWM answered 304 Not Modified.
+     */
+    private int requestTodayWeather(String url, WeatherJsonParser.TodayWeather todayWeather) {
 
-        String todayForecastJsonStr = "";
         // If there's no zip code, there's nothing to look up.  Verify size of params.
         if (url.length() == 0) {
-            return todayForecastJsonStr;
+            return SERVER_INVALID_CITY;
         }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
+        // This needs to be declared outside the try/catch
+        // so that it can be closed in the finally block.
         HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
-
-        // Will contain the raw JSON response as a string.
 
         String format = "json";
         String units = "metric";
@@ -547,247 +1264,176 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
             // Create the request to OpenWeatherMap, and open the connection
             urlConnection = (HttpURLConnection) finalUrl.openConnection();
             urlConnection.setRequestMethod("GET");
+            urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            mValidatorStore.addValidators(urlConnection, url);
+            long connectStart = SystemClock.elapsedRealtime();
             urlConnection.connect();
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return todayForecastJsonStr;
+
+            int responseCode = urlConnection.getResponseCode();
+            SyncMetrics.record(SyncMetrics.PHASE_CONNECT, SystemClock.elapsedRealtime() - connectStart, 0);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(LOG_TAG, "today weather not modified. URL: " + finalUrl);
+                return RESPONSE_NOT_MODIFIED;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+            // OWM explains errors with a "cod" in the body of the error response
+            InputStream inputStream = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                    urlConnection.getErrorStream() : urlConnection.getInputStream();
+            if (inputStream == null) {
+                // Nothing to do.
+                return responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                        WeatherJsonParser.getStatus(responseCode) : SERVER_DOWN;
             }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                return todayForecastJsonStr;
+            SyncMetrics.MeteredInputStream meteredStream = new SyncMetrics.MeteredInputStream(inputStream);
+            long parseStart = SystemClock.elapsedRealtime();
+            int status = WeatherJsonParser.parseTodayWeather(meteredStream, todayWeather);
+            SyncMetrics.recordResponse(meteredStream, SystemClock.elapsedRealtime() - parseStart);
+            if (status == SERVER_STATUS_OK) {
+                mValidatorStore.stageValidators(urlConnection, url);
             }
-            todayForecastJsonStr = buffer.toString();
+            return status;
 
         } catch (IOException e) {
-            Log.e(LOG_TAG, e.getMessage());
+            Log.e(LOG_TAG, "Error ", e);
             // If the code didn't successfully get the weather data, there's no point in attempting
             // to parse it.
-            setServerStatus(getContext(), SERVER_DOWN, false);
+            return SERVER_DOWN;
 
         } finally {
             if (urlConnection != null) {
                 urlConnection.disconnect();
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
-            }
         }
-
-        return todayForecastJsonStr;
     }
 
 
 
     /**
-     * Parse the json string and return an array of ContentValuesn
+     * HTTP request to the "onecall" endpoint, which returns current and daily weather of a coordinate at once.
+     * Current weather is parsed into todayWeather, every following day becomes a row of futureRows,
+     * still without its location key.
+     *
+     * @return the status of the server, or RESPONSE_NOT_MODIFIED if OWM answered 304 Not Modified.
      */
-    private Vector<ContentValues> parseWeatherJson(String todayJsonStr, String futureJsonStr, String inputLocationName) {
-
-        //OWM API Parameters
-        final String OWM_WEATHER = "weather";
-        final String OWM_WEATHER_ID = "id";
-        final String OWM_SHORT_DESC = "main";
-        final String OWM_LONG_DESC = "description";
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WIND_SPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_CLOUDINESS = "clouds";
-        final String OWM_COORD = "coord";
-        final String OWM_MESSAGE_CODE = "cod";
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-
-        //Today exclusive
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_TODAY_MAX = "temp_max";
-        final String OWM_TODAY_MIN = "temp_min";
-        final String OWM_TODAY_CLOUDINESS = "all";
+    private int requestOneCallWeather(String oneCallUrl, WeatherJsonParser.TodayWeather todayWeather,
+                                      final WeatherRowBuffer futureRows) {
+
+        futureRows.clear();
+        // This needs to be declared outside the try/catch
+        // so that it can be closed in the finally block.
+        HttpURLConnection urlConnection = null;
+
+        String units = "metric";
+        //Only current and daily weather are saved
+        String exclude = "minutely,hourly,alerts";
 
-        //Future exclusive
-        final String OWM_LIST = "list";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        final String UNITS_PARAM = "units";
+        final String EXCLUDE_PARAM = "exclude";
+        final String APPID_PARAM = "APPID";
 
         try {
+            Uri builtUri = Uri.parse(oneCallUrl).buildUpon()
+                    .appendQueryParameter(UNITS_PARAM, units)
+                    .appendQueryParameter(EXCLUDE_PARAM, exclude)
+                    .appendQueryParameter(APPID_PARAM, "8ad21085b684a314bdcd9f12a3399e21")
+                    .build();
 
-            JSONObject todayJson = new JSONObject(todayJsonStr);
-            JSONObject futureJson = new JSONObject(futureJsonStr);
-
-            //Check error message from server
-            if (todayJson.has(OWM_MESSAGE_CODE)) {
-                int errorCode = todayJson.getInt(OWM_MESSAGE_CODE);
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setServerStatus(getContext(), SERVER_INVALID_CITY, false);
-                        return null;
-                    default:
-                        setServerStatus(getContext(), SERVER_DOWN, false);
-                        return null;
-                }
+            URL finalUrl = new URL(builtUri.toString());
+            Log.d(LOG_TAG, "fetching one call weather...  URL: " + finalUrl);
+
+            // Create the request to OpenWeatherMap, and open the connection
+            urlConnection = (HttpURLConnection) finalUrl.openConnection();
+            urlConnection.setRequestMethod("GET");
+            urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            mValidatorStore.addValidators(urlConnection, oneCallUrl);
+            long connectStart = SystemClock.elapsedRealtime();
+            urlConnection.connect();
+
+            int responseCode = urlConnection.getResponseCode();
+            SyncMetrics.record(SyncMetrics.PHASE_CONNECT, SystemClock.elapsedRealtime() - connectStart, 0);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(LOG_TAG, "one call weather not modified. URL: " + finalUrl);
+                return RESPONSE_NOT_MODIFIED;
             }
-            if (futureJson.has(OWM_MESSAGE_CODE)) {
-                int errorCode = futureJson.getInt(OWM_MESSAGE_CODE);
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setServerStatus(getContext(),SERVER_INVALID_CITY, false);
-                        return null;
-                    default:
-                        setServerStatus(getContext(), SERVER_DOWN, false);
-                        return null;
-                }
+
+            // OWM explains errors with a "cod" in the body of the error response
+            InputStream inputStream = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                    urlConnection.getErrorStream() : urlConnection.getInputStream();
+            if (inputStream == null) {
+                // Nothing to do.
+                return responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                        WeatherJsonParser.getStatus(responseCode) : SERVER_DOWN;
             }
 
-            String cityName = todayJson.getString(OWM_CITY_NAME);
-            JSONObject cityCoord = todayJson.getJSONObject(OWM_COORD);
-            double lon = cityCoord.getDouble(OWM_LONGITUDE);
-            double lat = cityCoord.getDouble(OWM_LATITUDE);
-
-//            String locationString = Utility.getDefaultSharedPreferencesMultiProcessLocation(getContext());
-            //Check location name in database
-            long locationId = checkLocation(inputLocationName, cityName, lat, lon);
-
-            //Today Weather Json Data
-            JSONArray todayWeatherArray = todayJson.getJSONArray(OWM_WEATHER);
-            JSONObject todayWeatherJson = todayWeatherArray.getJSONObject(0);
-            int todayWeatherId = todayWeatherJson.getInt(OWM_WEATHER_ID);
-            String todayDescription = todayWeatherJson.getString(OWM_SHORT_DESC);
-            String todayLongDescription = todayWeatherJson.getString(OWM_LONG_DESC);
-            JSONObject todayMainJson = todayJson.getJSONObject(OWM_SHORT_DESC);
-            double todayTemp = todayMainJson.getDouble(OWM_TEMPERATURE);
-            double todayMax = todayMainJson.getDouble(OWM_TODAY_MAX);
-            double todayMin = todayMainJson.getDouble(OWM_TODAY_MIN);
-            int todayHumidity = todayMainJson.getInt(OWM_HUMIDITY);
-            double todayPressure = todayMainJson.getDouble(OWM_PRESSURE);
-
-//            JSONObject windJson = todayJson.getJSONObject(OWM_TODAY_WIND);
-//            double todayWindSpeed = windJson.getDouble(OWM_WIND_SPEED);
-//            int todayWindDirection = windJson.getInt(OWM_WIND_DIRECTION);
-
-            JSONObject cloudJson = todayJson.getJSONObject(OWM_CLOUDINESS);
-            int todayCloudiness = cloudJson.getInt(OWM_TODAY_CLOUDINESS);
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-
-
-
-            long currentTime = System.currentTimeMillis();
-            long dateTime;
-
-            // Insert the new weather information into the database
-            JSONArray weatherArray = futureJson.getJSONArray(OWM_LIST);
-            Vector<ContentValues> cVVector = new Vector<>(weatherArray.length());
-
-            for (int i = 0; i < weatherArray.length(); i++) {
-
-                ContentValues weatherValues = new ContentValues();
-
-                dateTime = WeatherContract.getNextNumberNJulianDate(currentTime, i);
-
-                if (i == 0) {
-                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_CURRENT_TEMP, todayTemp);
-                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_CODE, todayWeatherId);
-                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, todayDescription);
-                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LONG_DESC, todayLongDescription);
-                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, todayMax);
-                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, todayMin);
-                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, todayHumidity);
-//                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, todayWindSpeed);
-                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_CLOUDINESS, todayCloudiness);
-//                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, todayWindDirection);
-                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, todayPressure);
-                    cVVector.add(weatherValues);
-                    continue;
+            final long currentTime = System.currentTimeMillis();
+            SyncMetrics.MeteredInputStream meteredStream = new SyncMetrics.MeteredInputStream(inputStream);
+            long parseStart = SystemClock.elapsedRealtime();
+            int status = WeatherJsonParser.parseOneCall(meteredStream, todayWeather, new WeatherJsonParser.ForecastDayHandler() {
+
+                @Override
+                public void onForecastDay(int dayIndex, WeatherJsonParser.ForecastDay day) {
+
+                    //The first daily entry is today, which comes from current weather instead.
+                    if (dayIndex > 0) {
+                        addFutureRow(futureRows, day, WeatherContract.getNextNumberNJulianDate(currentTime, dayIndex));
+                    }
                 }
+            });
+            SyncMetrics.recordResponse(meteredStream, SystemClock.elapsedRealtime() - parseStart);
+            if (status == SERVER_STATUS_OK) {
+                mValidatorStore.stageValidators(urlConnection, oneCallUrl);
+            }
+            return status;
 
-                //Future Weather Json Data
-                double pressure;
-                int humidity;
-                int cloudiness;
-                double windSpeed;
-                double windDirection;
-                double high;
-                double low;
-                String shortDesc;
-                String longDesc;
-                int weatherId;
-                // Get the JSON object representing the day
-                JSONObject futureDayForecast = weatherArray.getJSONObject(i);
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                pressure = futureDayForecast.getDouble(OWM_PRESSURE);
-                humidity = futureDayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = futureDayForecast.getDouble(OWM_WIND_SPEED);
-                windDirection = futureDayForecast.getDouble(OWM_WIND_DIRECTION);
-                cloudiness = futureDayForecast.getInt(OWM_CLOUDINESS);
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        futureDayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                shortDesc = weatherObject.getString(OWM_SHORT_DESC);
-                longDesc = weatherObject.getString(OWM_LONG_DESC);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = futureDayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_CURRENT_TEMP, 10.0);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, shortDesc);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LONG_DESC, longDesc);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_CODE, weatherId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_CLOUDINESS, cloudiness);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                cVVector.add(weatherValues);
-
-            }
-            return cVVector;
-
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, "parseWeatherJson() failed, caught JSONException: " + e.getMessage());
-            setServerStatus(getContext(),SERVER_INVALID_CITY, false);
-            return null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            return SERVER_DOWN;
+
+        } finally {
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
         }
+    }
 
+
+
+    private static void addTodayRow(WeatherRowBuffer weatherRows, WeatherJsonParser.TodayWeather todayWeather) {
+
+        //Current weather has no wind columns
+        weatherRows.addRow(WeatherContract.getNextNumberNJulianDate(System.currentTimeMillis(), 0),
+                todayWeather.weatherId,
+                todayWeather.shortDesc,
+                todayWeather.longDesc,
+                todayWeather.min,
+                todayWeather.max,
+                todayWeather.humidity,
+                todayWeather.pressure,
+                WeatherRowBuffer.NO_VALUE,
+                WeatherRowBuffer.NO_VALUE,
+                todayWeather.temp,
+                todayWeather.cloudiness);
+    }
+
+
+
+    private static void addFutureRow(WeatherRowBuffer futureRows, WeatherJsonParser.ForecastDay day, long dateTime) {
+
+        futureRows.addRow(dateTime,
+                day.weatherId,
+                day.shortDesc,
+                day.longDesc,
+                day.low,
+                day.high,
+                day.humidity,
+                day.pressure,
+                day.windSpeed,
+                day.windDirection,
+                10.0,
+                day.cloudiness);
     }
 
 
@@ -858,8 +1504,19 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
 
 
+    @VisibleForTesting
+    void setFetchingPhotos(boolean isFetchingPhotos) {
+
+        mIsFetchingPhotos = isFetchingPhotos;
+    }
+
+
+
     private void fetchCityPhotos(String cityName) {
 
+        if (!mIsFetchingPhotos) {
+            return;
+        }
         LeanCloud.getInstance().setCallbackListener(this);
         LeanCloud.getInstance().downloadCityImagesInfo(cityName);
 
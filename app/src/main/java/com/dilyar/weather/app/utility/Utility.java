@@ -21,18 +21,21 @@ import android.graphics.Point;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.preference.PreferenceManager;
-import android.text.format.Time;
 import android.view.Display;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.ImageView;
 
+import com.dilyar.weather.app.BuildConfig;
 import com.dilyar.weather.app.R;
+import com.dilyar.weather.core.Temperatures;
+import com.dilyar.weather.core.WeatherDates;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.TimeZone;
 
 public class Utility {
 
@@ -220,13 +223,7 @@ public class Utility {
 
     public static String formatTemperature(Context context, double temperature, boolean isMetric) {
 
-        double temp;
-        if (!isMetric) {
-            temp = 9 * temperature / 5 + 32;
-        } else {
-            temp = temperature;
-        }
-        return context.getString(R.string.format_temperature, temp);
+        return context.getString(R.string.format_temperature, Temperatures.toDisplayTemperature(temperature, isMetric));
     }
 
 
@@ -256,22 +253,18 @@ public class Utility {
         // For the next 5 days: "Wednesday" (just the day name)
         // For all days after that: "Mon Jun 8"
 
-        Time time = new Time();
-        time.setToNow();
-        long currentTime = System.currentTimeMillis();
-        int julianDay = Time.getJulianDay(dateInMillis, time.gmtoff);
-        int currentJulianDay = Time.getJulianDay(currentTime, time.gmtoff);
+        int daysFromToday = WeatherDates.getDaysFromToday(dateInMillis, System.currentTimeMillis(), TimeZone.getDefault());
 
         // If the date we're building the String for is today's date, the format
         // is "Today, June 24"
-        if (julianDay == currentJulianDay) {
+        if (daysFromToday == 0) {
             String today = context.getString(R.string.today);
             int formatId = R.string.format_full_friendly_date;
             return String.format(context.getString(
                     formatId,
                     today,
                     getFormattedMonthDay(context, dateInMillis)));
-        } else if (julianDay < currentJulianDay + 7) {
+        } else if (daysFromToday < 7) {
             // If the input date is less than a week in the future, just return the day name.
             return getDayName(context, dateInMillis);
         } else {
@@ -295,17 +288,12 @@ public class Utility {
         // If the date is today, return the localized version of "Today" instead of the actual
         // day name.
 
-        Time t = new Time();
-        t.setToNow();
-        int julianDay = Time.getJulianDay(dateInMillis, t.gmtoff);
-        int currentJulianDay = Time.getJulianDay(System.currentTimeMillis(), t.gmtoff);
-        if (julianDay == currentJulianDay) {
+        int daysFromToday = WeatherDates.getDaysFromToday(dateInMillis, System.currentTimeMillis(), TimeZone.getDefault());
+        if (daysFromToday == 0) {
             return context.getString(R.string.today);
-        } else if (julianDay == currentJulianDay + 1) {
+        } else if (daysFromToday == 1) {
             return context.getString(R.string.tomorrow);
         } else {
-            Time time = new Time();
-            time.setToNow();
             // Otherwise, the format is just the day of the week (e.g "Wednesday".
             SimpleDateFormat dayFormat = new SimpleDateFormat("EEEE");
             return dayFormat.format(dateInMillis);
@@ -324,9 +312,6 @@ public class Utility {
      */
     public static String getFormattedMonthDay(Context context, long dateInMillis) {
 
-        Time time = new Time();
-        time.setToNow();
-        SimpleDateFormat dbDateFormat = new SimpleDateFormat(Utility.DATE_FORMAT);
         SimpleDateFormat monthDayFormat = new SimpleDateFormat("MMMM dd");
         String monthDayString = monthDayFormat.format(dateInMillis);
         return monthDayString;
@@ -541,6 +526,56 @@ public class Utility {
 
 
 
+    //Cities synced more recently than this are skipped unless the sync is forced
+    public static long getSyncTtlMillis(Context context) {
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        int ttlMinutes = sharedPreferences.getInt(context.getString(R.string.pref_sync_ttl_minutes_key),
+                Integer.parseInt(context.getString(R.string.pref_sync_ttl_minutes_default)));
+        return ttlMinutes * 60 * 1000L;
+    }
+
+
+
+    //Shortest time between two reloads of a page while its city keeps changing during a sync
+    public static long getLoaderUpdateThrottleMillis(Context context) {
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return sharedPreferences.getInt(context.getString(R.string.pref_loader_update_throttle_millis_key),
+                Integer.parseInt(context.getString(R.string.pref_loader_update_throttle_millis_default)));
+    }
+
+
+
+    //Fetch current and daily weather with one coordinate based request
+    public static boolean isUsingOneCall(Context context) {
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return sharedPreferences.getBoolean(context.getString(R.string.pref_enable_one_call_key),
+                Boolean.parseBoolean(context.getString(R.string.pref_enable_one_call_default)));
+    }
+
+
+
+    //Cities synced at the same time when all cities are updated
+    public static int getMaxParallelCitySyncs(Context context) {
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return sharedPreferences.getInt(context.getString(R.string.pref_max_parallel_city_syncs_key),
+                Integer.parseInt(context.getString(R.string.pref_max_parallel_city_syncs_default)));
+    }
+
+
+
+    //Base url of the OpenWeatherMap API, the endpoint paths are appended to it
+    public static String getOwmBaseUrl(Context context) {
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return sharedPreferences.getString(context.getString(R.string.pref_owm_base_url_key), BuildConfig.OWM_BASE_URL);
+    }
+
+
+
     public static String toTitleCase(String givenString) {
 
         if (givenString != null) {
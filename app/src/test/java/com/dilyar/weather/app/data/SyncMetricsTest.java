@@ -0,0 +1,76 @@
+package com.dilyar.weather.app.data;
+
+import android.database.Cursor;
+
+import com.dilyar.weather.app.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Counters of SyncMetrics as they are read through MetricsEntry.COUNTERS_URI. They are kept for the whole
+ * process, so the tests look at how much they change.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, application = android.app.Application.class)
+public class SyncMetricsTest {
+
+    @Test
+    public void countersUriIsNotTakenForPhase() {
+
+        assertEquals(WeatherProvider.METRICS_COUNTERS,
+                WeatherProvider.buildUriMatcher().match(WeatherContract.MetricsEntry.COUNTERS_URI));
+        assertEquals(WeatherProvider.METRICS_WITH_PHASE, WeatherProvider.buildUriMatcher().match(
+                WeatherContract.MetricsEntry.buildMetricsPhaseUri(SyncMetrics.PHASE_CONNECT)));
+    }
+
+
+
+    @Test
+    public void reloadsAvoidedAreRequestedMinusRun() {
+
+        Map<String, Long> before = readCounters();
+        for (int i = 0; i < 5; i++) {
+            SyncMetrics.increment(SyncMetrics.COUNTER_RELOADS_REQUESTED);
+        }
+        SyncMetrics.increment(SyncMetrics.COUNTER_RELOADS_RUN);
+        Map<String, Long> after = readCounters();
+
+        assertEquals(5, after.get(SyncMetrics.COUNTER_RELOADS_REQUESTED) - before.get(SyncMetrics.COUNTER_RELOADS_REQUESTED));
+        assertEquals(1, after.get(SyncMetrics.COUNTER_RELOADS_RUN) - before.get(SyncMetrics.COUNTER_RELOADS_RUN));
+        assertEquals(4, after.get(SyncMetrics.COUNTER_RELOADS_AVOIDED) - before.get(SyncMetrics.COUNTER_RELOADS_AVOIDED));
+    }
+
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void derivedCounterCanNotBeIncremented() {
+
+        SyncMetrics.increment(SyncMetrics.COUNTER_RELOADS_AVOIDED);
+    }
+
+
+
+    private static Map<String, Long> readCounters() {
+
+        Map<String, Long> counters = new HashMap<>();
+        Cursor cursor = SyncMetrics.buildCountersCursor(null);
+        try {
+            int counterColumn = cursor.getColumnIndexOrThrow(WeatherContract.MetricsEntry.COLUMN_COUNTER);
+            int countColumn = cursor.getColumnIndexOrThrow(WeatherContract.MetricsEntry.COLUMN_COUNT);
+            while (cursor.moveToNext()) {
+                counters.put(cursor.getString(counterColumn), cursor.getLong(countColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return counters;
+    }
+}
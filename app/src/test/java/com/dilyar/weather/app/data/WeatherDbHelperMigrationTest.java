@@ -0,0 +1,324 @@
+package com.dilyar.weather.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.dilyar.weather.app.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrades of every schema from WeatherDbHelper.OLDEST_MIGRATED_VERSION on to the current one, and the paths that
+ * recreate the database instead. The old schemas are written out here as they were released, so a change of
+ * the current schema does not change what is migrated from.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, application = android.app.Application.class)
+public class WeatherDbHelperMigrationTest {
+
+    //Version 41, the first released schema
+    private static final String[] SCHEMA_41 = {
+            "CREATE TABLE location (_id INTEGER PRIMARY KEY,input_location TEXT UNIQUE NOT NULL, " +
+                    "city_name TEXT NOT NULL, coord_lat REAL NOT NULL, coord_long REAL NOT NULL  );",
+            "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT,location_id INTEGER NOT NULL, " +
+                    "date INTEGER NOT NULL, short_desc TEXT NOT NULL, long_desc TEXT NOT NULL, " +
+                    "weather_code INTEGER NOT NULL,min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, " +
+                    "pressure REAL NOT NULL, wind REAL, degrees REAL, current_temp REAL NOT NULL, " +
+                    "cloudiness REAL NOT NULL,  FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+                    "UNIQUE (date, location_id) ON CONFLICT REPLACE);",
+            "CREATE TABLE photo (_id INTEGER PRIMARY KEY,photo_city_name TEXT NOT NULL, total INTEGER NOT NULL, " +
+                    "title TEXT NOT NULL, url TEXT NOT NULL, photoOwner TEXT, photoDate TEXT  );"
+    };
+    private static final String[] SCHEMA_42 = {
+            "ALTER TABLE location ADD COLUMN owm_city_id INTEGER",
+            "ALTER TABLE location ADD COLUMN forecast_synced INTEGER NOT NULL DEFAULT 0"
+    };
+    private static final String[] SCHEMA_43 = {
+            "ALTER TABLE location ADD COLUMN last_synced INTEGER NOT NULL DEFAULT 0"
+    };
+    private static final String[] SCHEMA_44 = {
+            "CREATE INDEX IF NOT EXISTS weather_location_date ON weather (location_id, date);",
+            "CREATE INDEX IF NOT EXISTS photo_city_name ON photo (photo_city_name);"
+    };
+    private static final String[] SCHEMA_45 = {
+            "CREATE TABLE current_conditions (input_location TEXT PRIMARY KEY, location_id INTEGER NOT NULL, " +
+                    "city_name TEXT NOT NULL, date INTEGER NOT NULL, weather_code INTEGER NOT NULL, " +
+                    "short_desc TEXT NOT NULL, long_desc TEXT NOT NULL, current_temp REAL NOT NULL, " +
+                    "min REAL NOT NULL, max REAL NOT NULL  );"
+    };
+
+    private static final long TODAY = WeatherContract.getJulianDate(System.currentTimeMillis());
+
+    private Context mContext;
+    private WeatherDbHelper mDbHelper;
+
+
+
+    @Before
+    public void setUp() {
+
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+
+
+    @After
+    public void tearDown() {
+
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+
+
+    @Test
+    public void upgradeFrom41() {
+
+        assertUpgradeKeepsData(41);
+    }
+
+
+
+    @Test
+    public void upgradeFrom42() {
+
+        assertUpgradeKeepsData(42);
+    }
+
+
+
+    @Test
+    public void upgradeFrom43() {
+
+        assertUpgradeKeepsData(43);
+    }
+
+
+
+    @Test
+    public void upgradeFrom44() {
+
+        assertUpgradeKeepsData(44);
+    }
+
+
+
+    @Test
+    public void upgradeFrom45() {
+
+        assertUpgradeKeepsData(45);
+    }
+
+
+
+    @Test
+    public void downgradeRecreatesTables() {
+
+        createDatabase(41, WeatherDbHelper.DATABASE_VERSION + 1);
+
+        assertRecreated(openUpgraded());
+    }
+
+
+
+    @Test
+    public void upgradeFromUnmigratedVersionRecreatesTables() {
+
+        createDatabase(41, WeatherDbHelper.OLDEST_MIGRATED_VERSION - 1);
+
+        assertRecreated(openUpgraded());
+    }
+
+
+
+    private void assertUpgradeKeepsData(int version) {
+
+        createDatabase(version, version);
+        SQLiteDatabase db = openUpgraded();
+
+        assertCurrentSchema(db);
+
+        //Locations keep their rows, columns added on the way get their defaults
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, "location"));
+        Cursor location = db.rawQuery("SELECT city_name, last_synced, forecast_synced FROM location " +
+                "WHERE input_location = ?", new String[]{"london"});
+        try {
+            assertTrue(location.moveToFirst());
+            assertEquals("London", location.getString(0));
+            assertEquals(0, location.getLong(1));
+            assertEquals(0, location.getLong(2));
+        } finally {
+            location.close();
+        }
+
+        //Weather keeps its rows and ids, and gets its descriptions from the condition table
+        assertEquals(4, DatabaseUtils.queryNumEntries(db, "weather"));
+        Cursor weather = db.rawQuery("SELECT _id, min, short_desc, long_desc FROM weather " +
+                "LEFT JOIN weather_condition USING (weather_code) WHERE location_id = 2 AND date = ?",
+                new String[]{Long.toString(TODAY + 1)});
+        try {
+            assertTrue(weather.moveToFirst());
+            assertEquals(4, weather.getLong(0));
+            assertEquals(3.5, weather.getDouble(1), 0);
+            assertEquals("Rain", weather.getString(2));
+            assertEquals("light rain", weather.getString(3));
+        } finally {
+            weather.close();
+        }
+
+        //One condition per weather code
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, "weather_condition"));
+        assertEquals("clear sky", DatabaseUtils.stringForQuery(db,
+                "SELECT long_desc FROM weather_condition WHERE weather_code = 800", null));
+
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, "photo"));
+
+        //Current conditions are filled with today's weather of both cities
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, "current_conditions"));
+        assertEquals("Clear", DatabaseUtils.stringForQuery(db,
+                "SELECT short_desc FROM current_conditions WHERE input_location = ?", new String[]{"london"}));
+
+        //UNIQUE (date, location_id) ON CONFLICT REPLACE still replaces the row of a day
+        db.execSQL("INSERT INTO weather (location_id, date, weather_code, min, max, humidity, pressure, " +
+                "current_temp, cloudiness) VALUES (1, ?, 800, 99, 100, 50, 1000, 99, 0)", new Object[]{TODAY});
+        assertEquals(4, DatabaseUtils.queryNumEntries(db, "weather"));
+        assertEquals(99, DatabaseUtils.longForQuery(db,
+                "SELECT min FROM weather WHERE location_id = 1 AND date = ?", new String[]{Long.toString(TODAY)}));
+    }
+
+
+
+    private void assertRecreated(SQLiteDatabase db) {
+
+        assertCurrentSchema(db);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "location"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "weather"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "photo"));
+    }
+
+
+
+    private static void assertCurrentSchema(SQLiteDatabase db) {
+
+        assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+
+        List<String> weatherColumns = getColumns(db, "weather");
+        assertFalse(weatherColumns.contains("short_desc"));
+        assertFalse(weatherColumns.contains("long_desc"));
+        assertTrue(getColumns(db, "location").contains("last_synced"));
+        assertTrue(getColumns(db, "weather_condition").contains("long_desc"));
+        assertTrue(getColumns(db, "current_conditions").contains("input_location"));
+
+        assertEquals(1, DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM sqlite_master WHERE type = 'index' AND name = 'weather_location_date'", null));
+        assertEquals(1, DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM sqlite_master WHERE type = 'index' AND name = 'photo_city_name'", null));
+        assertTrue(DatabaseUtils.stringForQuery(db,
+                "SELECT sql FROM sqlite_master WHERE type = 'table' AND name = 'weather'", null)
+                .contains("UNIQUE (date, location_id) ON CONFLICT REPLACE"));
+    }
+
+
+
+    //Write the schema of version with a few rows, and mark the file as storedVersion.
+    private void createDatabase(int version, int storedVersion) {
+
+        File databaseFile = mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME);
+        databaseFile.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
+        try {
+            execAll(db, SCHEMA_41);
+            if (version >= 42) {
+                execAll(db, SCHEMA_42);
+            }
+            if (version >= 43) {
+                execAll(db, SCHEMA_43);
+            }
+            if (version >= 44) {
+                execAll(db, SCHEMA_44);
+            }
+            if (version >= 45) {
+                execAll(db, SCHEMA_45);
+            }
+
+            db.execSQL("INSERT INTO location (_id, input_location, city_name, coord_lat, coord_long) " +
+                    "VALUES (1, 'london', 'London', 51.5, -0.1)");
+            db.execSQL("INSERT INTO location (_id, input_location, city_name, coord_lat, coord_long) " +
+                    "VALUES (2, 'paris', 'Paris', 48.9, 2.4)");
+            insertWeather(db, 1, 1, TODAY, "Clear", "clear sky", 800, 10.5);
+            insertWeather(db, 2, 1, TODAY + 1, "Clear", "clear sky", 800, 11.5);
+            insertWeather(db, 3, 2, TODAY, "Clear", "clear sky", 800, 2.5);
+            insertWeather(db, 4, 2, TODAY + 1, "Rain", "light rain", 500, 3.5);
+            db.execSQL("INSERT INTO photo (photo_city_name, total, title, url) " +
+                    "VALUES ('London', 1, 'Tower Bridge', 'http://example.com/1.jpg')");
+
+            db.setVersion(storedVersion);
+        } finally {
+            db.close();
+        }
+    }
+
+
+
+    private SQLiteDatabase openUpgraded() {
+
+        mDbHelper = new WeatherDbHelper(mContext);
+        return mDbHelper.getWritableDatabase();
+    }
+
+
+
+    private static void insertWeather(SQLiteDatabase db, long id, long locationId, long date, String shortDesc,
+                                      String longDesc, int weatherCode, double minTemp) {
+
+        db.execSQL("INSERT INTO weather (_id, location_id, date, short_desc, long_desc, weather_code, min, max, " +
+                        "humidity, pressure, wind, degrees, current_temp, cloudiness) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?, 20, 60, 1013, 3.5, 180, 15, 40)",
+                new Object[]{id, locationId, date, shortDesc, longDesc, weatherCode, minTemp});
+    }
+
+
+
+    private static void execAll(SQLiteDatabase db, String[] statements) {
+
+        for (String statement : statements) {
+            db.execSQL(statement);
+        }
+    }
+
+
+
+    private static List<String> getColumns(SQLiteDatabase db, String table) {
+
+        List<String> columns = new ArrayList<>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameColumn = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,221 @@
+package com.dilyar.weather.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.dilyar.weather.app.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The selections WeatherProvider runs most are answered by the indexes WeatherDbHelper creates for them,
+ * checked with EXPLAIN QUERY PLAN on the statements the provider builds.
+ * Every statement with a WHERE that the provider and the sync adapter run is checked not to scan a table.
+ * The only full read is the saved locations query of all cities sync, which wants every location.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, application = android.app.Application.class)
+public class WeatherProviderQueryPlanTest {
+
+    private static final String WEATHER_LOCATION_DATE_INDEX = "weather_location_date";
+    private static final String PHOTO_CITY_NAME_INDEX = "photo_city_name";
+
+    private static final String LOCATION_ID = "1";
+    private static final String INPUT_LOCATION_NAME = "london";
+    private static final String DATE = "2457000";
+
+    //A statement as it runs and the arguments of its selection
+    private static class Statement {
+        final String description;
+        final String sql;
+        final String[] selectionArgs;
+
+        Statement(String description, String sql, String... selectionArgs) {
+            this.description = description;
+            this.sql = sql;
+            this.selectionArgs = selectionArgs;
+        }
+    }
+
+    private Context mContext;
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+
+
+    @Before
+    public void setUp() {
+
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDb = mDbHelper.getWritableDatabase();
+    }
+
+
+
+    @After
+    public void tearDown() {
+
+        mDbHelper.close();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+
+
+    @Test
+    public void weatherByLocationFromStartDateUsesLocationDateIndex() {
+
+        //The query of a city page, sorted the way ForecastFragment sorts it
+        String sql = WeatherProvider.sWeatherByInputLocationQueryBuilder.buildQuery(null,
+                WeatherProvider.sLocationSettingWithStartDateSelection, null, null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC", null);
+
+        assertUsesIndex(sql, new String[]{"london", "2457000"}, WEATHER_LOCATION_DATE_INDEX);
+    }
+
+
+
+    @Test
+    public void deleteBeforeDateUsesLocationDateIndex() {
+
+        String sql = "DELETE FROM " + WeatherContract.WeatherEntry.TABLE_NAME +
+                " WHERE " + WeatherProvider.sLocationIdWithBeforeDateSelection;
+
+        assertUsesIndex(sql, new String[]{"1", "2457000"}, WEATHER_LOCATION_DATE_INDEX);
+    }
+
+
+
+    @Test
+    public void photoByCityNameUsesCityNameIndex() {
+
+        String sql = "SELECT * FROM " + WeatherContract.PhotoEntry.TABLE_NAME +
+                " WHERE " + WeatherProvider.PHOTO_WITH_INPUT_LOCATION;
+
+        assertUsesIndex(sql, new String[]{"London"}, PHOTO_CITY_NAME_INDEX);
+    }
+
+
+
+    @Test
+    public void noStatementScansATable() {
+
+        StringBuilder scans = new StringBuilder();
+        for (Statement statement : buildStatements()) {
+            String plan = explainQueryPlan(statement.sql, statement.selectionArgs);
+            for (String step : plan.split("\n")) {
+                //"SCAN TABLE weather" on older SQLite, "SCAN weather" on newer. A scan of an index is still allowed.
+                if (step.startsWith("SCAN ") && !step.contains(" INDEX ")) {
+                    scans.append(statement.description).append(": ").append(step)
+                            .append("\n    ").append(statement.sql).append('\n');
+                }
+            }
+        }
+        if (scans.length() > 0) {
+            fail("Table scans in the plans of:\n" + scans);
+        }
+    }
+
+
+
+    //Statements with a selection that WeatherProvider, WeatherDbHelper and SunshineSyncAdapter run
+    private static List<Statement> buildStatements() {
+
+        String weatherTable = WeatherContract.WeatherEntry.TABLE_NAME;
+        String locationTable = WeatherContract.LocationEntry.TABLE_NAME;
+        String photoTable = WeatherContract.PhotoEntry.TABLE_NAME;
+        String currentConditionsTable = WeatherContract.CurrentConditionsEntry.TABLE_NAME;
+        String dateAscending = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        String byInputLocationName = WeatherContract.LocationEntry.COLUMN_INPUT_LOCATION_NAME + " = ?";
+        String byLocationId = WeatherContract.LocationEntry._ID + " = ?";
+
+        List<Statement> statements = new ArrayList<>();
+        //Weather of a city, WEATHER_WITH_LOCATION with and without a start date, and WEATHER_WITH_LOCATION_AND_DATE
+        statements.add(new Statement("weather of a city",
+                WeatherProvider.sWeatherByInputLocationQueryBuilder.buildQuery(null,
+                        WeatherProvider.sLocationSettingSelection, null, null, dateAscending, null),
+                INPUT_LOCATION_NAME));
+        statements.add(new Statement("weather of a city from a date",
+                WeatherProvider.sWeatherByInputLocationQueryBuilder.buildQuery(null,
+                        WeatherProvider.sLocationSettingWithStartDateSelection, null, null, dateAscending, null),
+                INPUT_LOCATION_NAME, DATE));
+        statements.add(new Statement("weather of a city on a date",
+                WeatherProvider.sWeatherByInputLocationQueryBuilder.buildQuery(null,
+                        WeatherProvider.sLocationNameAndDaySelection, null, null, null, null),
+                INPUT_LOCATION_NAME, DATE));
+        //Rows saveWeather and inserts compare new weather with
+        statements.add(new Statement("stored weather rows", WeatherProvider.sStoredWeatherRowsSql, LOCATION_ID));
+        statements.add(new Statement("stored weather", WeatherProvider.sStoredWeatherSql, LOCATION_ID));
+        statements.add(new Statement("weather history delete",
+                "DELETE FROM " + weatherTable + " WHERE " + WeatherProvider.sLocationIdWithBeforeDateSelection,
+                LOCATION_ID, DATE));
+        //Location id lookups of the provider, the freshness check and the coordinates of the sync adapter
+        statements.add(new Statement("location by input location name",
+                "SELECT * FROM " + locationTable + " WHERE " + byInputLocationName, INPUT_LOCATION_NAME));
+        statements.add(new Statement("location sync info update",
+                "UPDATE " + locationTable + " SET " + WeatherContract.LocationEntry.COLUMN_LAST_SYNCED +
+                        " = 0 WHERE " + byLocationId, LOCATION_ID));
+        //Photos of a city
+        statements.add(new Statement("photos of a city",
+                "SELECT * FROM " + photoTable + " WHERE " + WeatherProvider.PHOTO_WITH_INPUT_LOCATION,
+                INPUT_LOCATION_NAME));
+        statements.add(new Statement("photos of a city delete",
+                "DELETE FROM " + photoTable + " WHERE " + WeatherContract.PhotoEntry.COLUMN_PHOTO_CITY_NAME + " = ?",
+                INPUT_LOCATION_NAME));
+        //Current conditions, read by CURRENT_CONDITIONS_WITH_LOCATION and refreshed by every weather write
+        statements.add(new Statement("current conditions of a city",
+                "SELECT * FROM " + currentConditionsTable + " WHERE " +
+                        WeatherContract.CurrentConditionsEntry.COLUMN_INPUT_LOCATION_NAME + " = ?",
+                INPUT_LOCATION_NAME));
+        statements.add(new Statement("current conditions of a location delete",
+                "DELETE FROM " + currentConditionsTable + " WHERE " +
+                        WeatherDbHelper.SQL_CURRENT_CONDITIONS_OF_LOCATION_SELECTION, LOCATION_ID));
+        statements.add(new Statement("current conditions copy",
+                WeatherDbHelper.SQL_COPY_CURRENT_CONDITIONS, DATE));
+        statements.add(new Statement("current conditions of a location copy",
+                WeatherDbHelper.SQL_COPY_CURRENT_CONDITIONS_OF_LOCATION, DATE, LOCATION_ID));
+        return statements;
+    }
+
+
+
+    //Some SQLite versions call an index that has every column the statement needs a covering index
+    private void assertUsesIndex(String sql, String[] selectionArgs, String index) {
+
+        String plan = explainQueryPlan(sql, selectionArgs);
+        assertTrue("No " + index + " in the plan of " + sql + ":\n" + plan,
+                plan.contains("USING INDEX " + index) || plan.contains("USING COVERING INDEX " + index));
+    }
+
+
+
+    //The detail column of every step of the plan, one per line
+    private String explainQueryPlan(String sql, String[] selectionArgs) {
+
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        try {
+            int detailColumn = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailColumn)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+}
@@ -0,0 +1,358 @@
+package com.dilyar.weather.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SyncResult;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.dilyar.weather.app.BuildConfig;
+import com.dilyar.weather.app.R;
+import com.dilyar.weather.app.data.WeatherContract;
+import com.dilyar.weather.app.data.WeatherProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLog;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How long all cities sync takes against FakeOwmServer, end to end through the HTTP requests, the streaming
+ * parser and the writes of WeatherProvider.
+ * - By name, for 1, 10 and 100 cities: the first sync resolves every city with a "weather" and a
+ *   "forecast/daily" request. The second one runs once the TTL is over and only needs the "group" requests,
+ *   the forecasts are not due yet.
+ * - One-call: once the forecasts are due, every city gets a single "onecall" request and no "group" one.
+ * - Large responses, which sync reads past the fields it needs.
+ * - Errors: unknown cities as HTTP 404 and as a "cod" in a 200 response, and a "forecast/daily" that is down.
+ * Every sync is checked for what it requested and saved. Its numbers are written to RESULTS_FILE as CSV,
+ * one row per sync of every test of the run, and logged under LOG_TAG to the test output.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, application = android.app.Application.class)
+public class AllCitiesSyncBenchmark {
+
+    private static final String LOG_TAG = AllCitiesSyncBenchmark.class.getSimpleName();
+
+    //Relative to the module, where Gradle runs unit tests
+    private static final File RESULTS_FILE = new File("build/reports/benchmarks/all-cities-sync.csv");
+    private static final String RESULTS_HEADER =
+            "scenario,cities,sync,millis,requests,inserts,skipped,io_errors,parse_errors";
+
+    //Round trip of a response from a nearby server, so the time of the requests running side by side shows
+    private static final long RESPONSE_DELAY_MILLIS = 20;
+    //The today row and every forecast day after today
+    private static final int ROWS_PER_CITY = 14;
+    //Cities of one "group" request, the same as SunshineSyncAdapter.MAX_GROUP_CITY_IDS
+    private static final int GROUP_CITY_IDS = 20;
+    //Attempts of a request that fails with a server error, the same as RetryPolicy.MAX_ATTEMPTS
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int PADDING_BYTES = 64 * 1024;
+
+    //Robolectric keeps statics between the tests of a run, the first test starts a new results file
+    private static boolean sIsResultsFileStarted;
+
+    //Rows of the syncs of the running test
+    private final List<String> mResults = new ArrayList<>();
+
+    private Context mContext;
+    private FakeOwmServer mServer;
+    private WeatherProvider mProvider;
+    private SunshineSyncAdapter mSyncAdapter;
+
+    //What one sync took and what it recorded
+    private static class Run {
+        long millis;
+        int requests;
+        SyncResult syncResult;
+    }
+
+
+
+    @Before
+    public void setUp() throws Exception {
+
+        ShadowLog.stream = System.out;
+        mContext = RuntimeEnvironment.application;
+        EndpointCircuitBreaker.resetAll();
+
+        mServer = new FakeOwmServer(RESPONSE_DELAY_MILLIS);
+        mServer.start();
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(mContext.getString(R.string.pref_owm_base_url_key), mServer.getBaseUrl())
+                .putBoolean(mContext.getString(R.string.pref_enable_one_call_key), false)
+                .remove(mContext.getString(R.string.pref_sync_ttl_minutes_key))
+                .commit();
+
+        mProvider = new WeatherProvider();
+        ProviderInfo providerInfo = new ProviderInfo();
+        providerInfo.authority = WeatherContract.CONTENT_AUTHORITY;
+        mProvider.attachInfo(mContext, providerInfo);
+        ShadowContentResolver.registerProvider(WeatherContract.CONTENT_AUTHORITY, mProvider);
+
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        mSyncAdapter.setFetchingPhotos(false);
+    }
+
+
+
+    @After
+    public void tearDown() throws Exception {
+
+        mProvider.shutdown();
+        mServer.shutdown();
+        writeResults();
+    }
+
+
+
+    @Test
+    public void syncOneCity() {
+
+        measureSyncByName(1);
+    }
+
+
+
+    @Test
+    public void syncTenCities() {
+
+        measureSyncByName(10);
+    }
+
+
+
+    @Test
+    public void syncHundredCities() {
+
+        measureSyncByName(100);
+    }
+
+
+
+    @Test
+    public void syncTenCitiesWithOneCall() {
+
+        String scenario = "one-call";
+        int cityCount = 10;
+        List<String> cities = buildCities(scenario, cityCount);
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putBoolean(mContext.getString(R.string.pref_enable_one_call_key), true)
+                .commit();
+
+        //Without coordinates one-call can't be used yet, the cities are resolved by name
+        Run firstRun = sync(scenario, cities, "first");
+        assertSynced(firstRun, cityCount);
+        assertEquals(cityCount, mServer.getRequestCount(FakeOwmServer.ENDPOINT_WEATHER));
+        assertEquals(cityCount, mServer.getRequestCount(FakeOwmServer.ENDPOINT_FORECAST));
+        assertEquals(0, mServer.getRequestCount(FakeOwmServer.ENDPOINT_ONE_CALL));
+
+        //Current weather and forecasts are due, both come with one "onecall" request per city
+        makeForecastsDue();
+        Run dueRun = sync(scenario, cities, "forecast due");
+        assertSynced(dueRun, cityCount);
+        assertEquals(cityCount, dueRun.requests);
+        assertEquals(cityCount, mServer.getRequestCount(FakeOwmServer.ENDPOINT_ONE_CALL));
+        assertEquals(0, mServer.getRequestCount(FakeOwmServer.ENDPOINT_GROUP));
+    }
+
+
+
+    @Test
+    public void syncTenCitiesWithLargeResponses() {
+
+        String scenario = "padded " + PADDING_BYTES / 1024 + "KB";
+        int cityCount = 10;
+        mServer.setPaddingBytes(PADDING_BYTES);
+
+        Run run = sync(scenario, buildCities("padded", cityCount), "first");
+        assertSynced(run, cityCount);
+        assertEquals(2 * cityCount, run.requests);
+    }
+
+
+
+    @Test
+    public void syncTenUnknownCities() {
+
+        mServer.setHttpError(FakeOwmServer.ENDPOINT_WEATHER, HttpURLConnection.HTTP_NOT_FOUND);
+
+        Run run = sync("http 404", buildCities("http404", 10), "first");
+        assertFailed(run, 10, 0, 10);
+    }
+
+
+
+    @Test
+    public void syncTenCitiesWithCodErrors() {
+
+        mServer.setCodError(FakeOwmServer.ENDPOINT_WEATHER, HttpURLConnection.HTTP_NOT_FOUND);
+
+        Run run = sync("cod 404", buildCities("cod404", 10), "first");
+        assertFailed(run, 10, 0, 10);
+    }
+
+
+
+    @Test
+    public void syncTenCitiesWithForecastDown() {
+
+        int cityCount = 10;
+        mServer.setHttpError(FakeOwmServer.ENDPOINT_FORECAST, HttpURLConnection.HTTP_UNAVAILABLE);
+
+        Run run = sync("http 503", buildCities("http503", cityCount), "first");
+        assertFailed(run, cityCount, cityCount, 0);
+        //Retried, until the circuit breaker stops asking the endpoint
+        int forecastRequests = mServer.getRequestCount(FakeOwmServer.ENDPOINT_FORECAST);
+        assertTrue(forecastRequests + " forecast requests", forecastRequests >= MAX_ATTEMPTS);
+        assertTrue(forecastRequests + " forecast requests", forecastRequests <= MAX_ATTEMPTS * cityCount);
+    }
+
+
+
+    private void measureSyncByName(int cityCount) {
+
+        String scenario = "by name";
+        List<String> cities = buildCities("bench" + cityCount, cityCount);
+
+        Run firstRun = sync(scenario, cities, "first");
+        assertSynced(firstRun, cityCount);
+        assertEquals(cityCount, mServer.getRequestCount(FakeOwmServer.ENDPOINT_WEATHER));
+        assertEquals(cityCount, mServer.getRequestCount(FakeOwmServer.ENDPOINT_FORECAST));
+
+        //Every city is due again, but only its current weather
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putInt(mContext.getString(R.string.pref_sync_ttl_minutes_key), 0)
+                .commit();
+        Run ttlRun = sync(scenario, cities, "after ttl");
+        int groupRequests = (cityCount + GROUP_CITY_IDS - 1) / GROUP_CITY_IDS;
+        assertFalse(ttlRun.syncResult.hasError());
+        assertEquals(groupRequests, ttlRun.requests);
+        assertEquals(groupRequests, mServer.getRequestCount(FakeOwmServer.ENDPOINT_GROUP));
+        assertEquals(cityCount * ROWS_PER_CITY, count(WeatherContract.WeatherEntry.CONTENT_URI));
+    }
+
+
+
+    //Names differ between the tests, the location ids of cities are cached for the whole process
+    private static List<String> buildCities(String prefix, int cityCount) {
+
+        List<String> cities = new ArrayList<>();
+        for (int i = 1; i <= cityCount; i++) {
+            cities.add(prefix + "-city" + i);
+        }
+        return cities;
+    }
+
+
+
+    private Run sync(String scenario, List<String> cities, String syncName) {
+
+        Run run = new Run();
+        run.syncResult = new SyncResult();
+        int requestsBefore = mServer.getRequestCount();
+        long start = System.nanoTime();
+        mSyncAdapter.fetchAllCities(mContext, cities, run.syncResult);
+        run.millis = (System.nanoTime() - start) / 1000000;
+        run.requests = mServer.getRequestCount() - requestsBefore;
+
+        SyncResult.SyncStats stats = run.syncResult.stats;
+        mResults.add(scenario + "," + cities.size() + "," + syncName + "," + run.millis + "," + run.requests + "," +
+                stats.numInserts + "," + stats.numSkippedEntries + "," + stats.numIoExceptions + "," +
+                stats.numParseExceptions);
+        return run;
+    }
+
+
+
+    //Every city saved with all of its rows
+    private void assertSynced(Run run, int cityCount) {
+
+        assertFalse(run.syncResult.hasError());
+        assertEquals(cityCount, run.syncResult.stats.numEntries);
+        assertEquals(cityCount, count(WeatherContract.LocationEntry.CONTENT_URI));
+        assertEquals(cityCount * ROWS_PER_CITY, count(WeatherContract.WeatherEntry.CONTENT_URI));
+    }
+
+
+
+    //Every city failed, with the server down or as an unknown city, and nothing saved
+    private void assertFailed(Run run, int cityCount, int ioErrors, int parseErrors) {
+
+        assertTrue(run.syncResult.hasError());
+        assertEquals(cityCount, run.syncResult.stats.numEntries);
+        assertEquals(ioErrors, run.syncResult.stats.numIoExceptions);
+        assertEquals(parseErrors, run.syncResult.stats.numParseExceptions);
+        assertEquals(0, count(WeatherContract.LocationEntry.CONTENT_URI));
+        assertEquals(0, count(WeatherContract.WeatherEntry.CONTENT_URI));
+    }
+
+
+
+    private void writeResults() throws IOException {
+
+        File resultsDir = RESULTS_FILE.getParentFile();
+        if (!resultsDir.isDirectory() && !resultsDir.mkdirs()) {
+            throw new IOException("Cannot create " + resultsDir);
+        }
+        Writer writer = new FileWriter(RESULTS_FILE, sIsResultsFileStarted);
+        try {
+            if (!sIsResultsFileStarted) {
+                writer.write(RESULTS_HEADER + "\n");
+                Log.i(LOG_TAG, RESULTS_HEADER);
+                sIsResultsFileStarted = true;
+            }
+            for (String result : mResults) {
+                writer.write(result + "\n");
+                Log.i(LOG_TAG, result);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+
+
+    //The TTL and the forecast refresh of every saved city are over
+    private void makeForecastsDue() {
+
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putInt(mContext.getString(R.string.pref_sync_ttl_minutes_key), 0)
+                .commit();
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_FORECAST_SYNCED, 0);
+        mContext.getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI, values, null, null);
+    }
+
+
+
+    private int count(Uri uri) {
+
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
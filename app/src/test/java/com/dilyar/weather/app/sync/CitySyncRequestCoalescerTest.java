@@ -0,0 +1,99 @@
+package com.dilyar.weather.app.sync;
+
+import com.dilyar.weather.app.BuildConfig;
+import com.dilyar.weather.app.data.SyncMetrics;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Which city sync requests CitySyncRequestCoalescer lets through, and that the ones it coalesces are counted
+ * under SyncMetrics.COUNTER_SYNCS_COALESCED. City names differ between the tests, the state is kept for the process.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, application = android.app.Application.class)
+public class CitySyncRequestCoalescerTest {
+
+    @After
+    public void tearDown() {
+
+        CitySyncRequestCoalescer.clearRequests();
+    }
+
+
+
+    @Test
+    public void requestWaitingCoversLaterOnes() {
+
+        long coalesced = SyncMetrics.getCount(SyncMetrics.COUNTER_SYNCS_COALESCED);
+
+        assertTrue(CitySyncRequestCoalescer.addRequest("waiting", false));
+        assertFalse(CitySyncRequestCoalescer.addRequest("waiting", false));
+        //Only a forced request covers a forced one
+        assertTrue(CitySyncRequestCoalescer.addRequest("waiting", true));
+        assertFalse(CitySyncRequestCoalescer.addRequest("waiting", true));
+
+        assertEquals(2, SyncMetrics.getCount(SyncMetrics.COUNTER_SYNCS_COALESCED) - coalesced);
+    }
+
+
+
+    @Test
+    public void requestDuringSyncOfCityIsCoalesced() {
+
+        long coalesced = SyncMetrics.getCount(SyncMetrics.COUNTER_SYNCS_COALESCED);
+
+        assertTrue(CitySyncRequestCoalescer.beginSync("syncing"));
+        assertFalse(CitySyncRequestCoalescer.addRequest("syncing", true));
+        assertFalse(CitySyncRequestCoalescer.beginSync("syncing"));
+        CitySyncRequestCoalescer.endSync("syncing", true);
+        assertTrue(CitySyncRequestCoalescer.addRequest("syncing", false));
+
+        assertEquals(2, SyncMetrics.getCount(SyncMetrics.COUNTER_SYNCS_COALESCED) - coalesced);
+    }
+
+
+
+    @Test
+    public void requestedSyncIsSkippedOnceAnotherSyncSavedTheCity() {
+
+        long requestedAt = System.currentTimeMillis();
+        assertTrue(CitySyncRequestCoalescer.addRequest("saved", false));
+        //All cities sync gets to the city before the requested sync runs
+        assertTrue(CitySyncRequestCoalescer.beginSync("saved"));
+        CitySyncRequestCoalescer.endSync("saved", true);
+
+        assertTrue(CitySyncRequestCoalescer.isSyncedSince("saved", requestedAt));
+        assertFalse(CitySyncRequestCoalescer.isSyncedSince("saved", Long.MAX_VALUE));
+    }
+
+
+
+    @Test
+    public void failedSyncDoesNotCoverRequests() {
+
+        long requestedAt = System.currentTimeMillis();
+        assertTrue(CitySyncRequestCoalescer.beginSync("failed"));
+        CitySyncRequestCoalescer.endSync("failed", false);
+
+        assertFalse(CitySyncRequestCoalescer.isSyncedSince("failed", requestedAt));
+        assertTrue(CitySyncRequestCoalescer.addRequest("failed", false));
+    }
+
+
+
+    @Test
+    public void stoppedSyncingDropsWaitingRequests() {
+
+        assertTrue(CitySyncRequestCoalescer.addRequest("stopped", false));
+        CitySyncRequestCoalescer.clearRequests();
+        assertTrue(CitySyncRequestCoalescer.addRequest("stopped", false));
+    }
+}
@@ -0,0 +1,386 @@
+package com.dilyar.weather.app.sync;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * A local stand-in for the OWM endpoints sync uses, "weather", "forecast/daily" and "group" by name and
+ * "onecall" by coordinates. Every city asked for by name exists, it gets an OWM id the first time it is
+ * asked for, so later "group" requests can find it. Responses have the shape of the real ones with made up
+ * values, optionally after a fixed delay to stand in for the network. Requests are counted per endpoint.
+ *
+ * Knobs, all per endpoint unless said otherwise:
+ * - setHttpError answers with an HTTP error status and OWM's error body, e.g. 503 or 404
+ * - setCodError answers 200 with only a "cod" error in the body, the way OWM reports unknown cities
+ * - setResponseBody replays a fixed body, e.g. a response recorded from OWM, instead of the made up one
+ * - setForecastDays and setPaddingBytes, for every endpoint, change the size of the responses
+ */
+class FakeOwmServer {
+
+    static final String ENDPOINT_WEATHER = "weather";
+    static final String ENDPOINT_FORECAST = "forecast/daily";
+    static final String ENDPOINT_GROUP = "group";
+    static final String ENDPOINT_ONE_CALL = "onecall";
+
+    private static final String BASE_PATH = "/data/2.5";
+
+    private static final int DEFAULT_FORECAST_DAYS = 14;
+    private static final long FIRST_CITY_ID = 1000;
+
+    private final MockWebServer mServer = new MockWebServer();
+    private final long mResponseDelayMillis;
+
+    //OWM ids of the cities asked for by name, and the other way around for "group" requests
+    private final Map<String, Long> mCityIds = new HashMap<>();
+    private final Map<Long, String> mCityNames = new HashMap<>();
+
+    private final ConcurrentHashMap<String, AtomicInteger> mRequestCounts = new ConcurrentHashMap<>();
+
+    //endpoint -> HTTP status, or "cod" in a 200 response, it fails with
+    private final ConcurrentHashMap<String, Integer> mHttpErrors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> mCodErrors = new ConcurrentHashMap<>();
+    //endpoint -> body replayed for every request
+    private final ConcurrentHashMap<String, String> mResponseBodies = new ConcurrentHashMap<>();
+
+    private volatile int mForecastDays = DEFAULT_FORECAST_DAYS;
+    private volatile int mPaddingBytes;
+
+
+
+    FakeOwmServer(long responseDelayMillis) {
+
+        mResponseDelayMillis = responseDelayMillis;
+        mServer.setDispatcher(new Dispatcher() {
+
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+
+                return respond(request);
+            }
+        });
+    }
+
+
+
+    void start() throws IOException {
+
+        mServer.start();
+    }
+
+
+
+    void shutdown() throws IOException {
+
+        mServer.shutdown();
+    }
+
+
+
+    //What the pref_owm_base_url_key preference is set to, so sync talks to this server
+    String getBaseUrl() {
+
+        String url = mServer.url(BASE_PATH).toString();
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+
+
+    int getRequestCount(String endpoint) {
+
+        AtomicInteger count = mRequestCounts.get(endpoint);
+        return count == null ? 0 : count.get();
+    }
+
+
+
+    //Every endpoint together
+    int getRequestCount() {
+
+        int count = 0;
+        for (AtomicInteger endpointCount : mRequestCounts.values()) {
+            count += endpointCount.get();
+        }
+        return count;
+    }
+
+
+
+    //Fail every request of endpoint with this HTTP status, 0 to answer it again
+    void setHttpError(String endpoint, int responseCode) {
+
+        setKnob(mHttpErrors, endpoint, responseCode);
+    }
+
+
+
+    //Answer every request of endpoint with 200 and a body with nothing but this "cod", 0 to answer it again
+    void setCodError(String endpoint, int cod) {
+
+        setKnob(mCodErrors, endpoint, cod);
+    }
+
+
+
+    //Answer every request of endpoint with body, null for the made up responses again
+    void setResponseBody(String endpoint, String body) {
+
+        if (body == null) {
+            mResponseBodies.remove(endpoint);
+        } else {
+            mResponseBodies.put(endpoint, body);
+        }
+    }
+
+
+
+    //Days of "forecast/daily" and "onecall" responses, the first one is today
+    void setForecastDays(int forecastDays) {
+
+        mForecastDays = forecastDays;
+    }
+
+
+
+    //Size of a field every response gets on top, which sync does not read and has to skip
+    void setPaddingBytes(int paddingBytes) {
+
+        mPaddingBytes = paddingBytes;
+    }
+
+
+
+    private static void setKnob(Map<String, Integer> knobs, String endpoint, int value) {
+
+        if (value == 0) {
+            knobs.remove(endpoint);
+        } else {
+            knobs.put(endpoint, value);
+        }
+    }
+
+
+
+    private MockResponse respond(RecordedRequest request) {
+
+        HttpUrl url = HttpUrl.parse("http://localhost" + request.getPath());
+        String path = url.encodedPath();
+        if (!path.startsWith(BASE_PATH + "/")) {
+            return buildErrorResponse(HttpURLConnection.HTTP_NOT_FOUND, HttpURLConnection.HTTP_NOT_FOUND);
+        }
+        String endpoint = path.substring(BASE_PATH.length() + 1);
+        countRequest(endpoint);
+
+        Integer httpError = mHttpErrors.get(endpoint);
+        if (httpError != null) {
+            return buildErrorResponse(httpError, httpError);
+        }
+        Integer codError = mCodErrors.get(endpoint);
+        if (codError != null) {
+            return buildErrorResponse(HttpURLConnection.HTTP_OK, codError);
+        }
+        String body = mResponseBodies.get(endpoint);
+        if (body != null) {
+            return buildResponse(HttpURLConnection.HTTP_OK, body);
+        }
+
+        switch (endpoint) {
+            case ENDPOINT_WEATHER:
+                return buildResponse(HttpURLConnection.HTTP_OK, buildWeatherJson(getCityId(url.queryParameter("q"))));
+            case ENDPOINT_FORECAST:
+                return buildResponse(HttpURLConnection.HTTP_OK, buildForecastJson(getCityId(url.queryParameter("q"))));
+            case ENDPOINT_GROUP:
+                return buildResponse(HttpURLConnection.HTTP_OK, buildGroupJson(url.queryParameter("id")));
+            case ENDPOINT_ONE_CALL:
+                return buildResponse(HttpURLConnection.HTTP_OK,
+                        buildOneCallJson(url.queryParameter("lat"), url.queryParameter("lon")));
+            default:
+                return buildErrorResponse(HttpURLConnection.HTTP_NOT_FOUND, HttpURLConnection.HTTP_NOT_FOUND);
+        }
+    }
+
+
+
+    private MockResponse buildResponse(int responseCode, String body) {
+
+        MockResponse response = new MockResponse()
+                .setResponseCode(responseCode)
+                .setHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody(body);
+        if (mResponseDelayMillis > 0) {
+            response.setBodyDelay(mResponseDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        return response;
+    }
+
+
+
+    //OWM's error body, its "cod" is a string in some endpoints and a number in others
+    private MockResponse buildErrorResponse(int responseCode, int cod) {
+
+        return buildResponse(responseCode, "{\"cod\":\"" + cod + "\",\"message\":\"fake error " + cod + "\"}");
+    }
+
+
+
+    private void countRequest(String endpoint) {
+
+        mRequestCounts.putIfAbsent(endpoint, new AtomicInteger());
+        mRequestCounts.get(endpoint).incrementAndGet();
+    }
+
+
+
+    private synchronized long getCityId(String cityName) {
+
+        Long cityId = mCityIds.get(cityName);
+        if (cityId == null) {
+            cityId = FIRST_CITY_ID + mCityIds.size();
+            mCityIds.put(cityName, cityId);
+            mCityNames.put(cityId, cityName);
+        }
+        return cityId;
+    }
+
+
+
+    private synchronized String getCityName(long cityId) {
+
+        return mCityNames.get(cityId);
+    }
+
+
+
+    //Response of the "weather" endpoint
+    private String buildWeatherJson(long cityId) {
+
+        return "{" + buildTodayFields(cityId) + buildPadding() + ",\"cod\":200}";
+    }
+
+
+
+    //Response of the "group" endpoint, ids OWM does not know are left out of the list like OWM does
+    private String buildGroupJson(String cityIds) {
+
+        StringBuilder list = new StringBuilder();
+        int count = 0;
+        for (String cityId : cityIds.split(",")) {
+            long id = Long.parseLong(cityId);
+            if (getCityName(id) == null) {
+                continue;
+            }
+            if (count > 0) {
+                list.append(',');
+            }
+            list.append('{').append(buildTodayFields(id)).append('}');
+            count++;
+        }
+        return "{\"cnt\":" + count + buildPadding() + ",\"list\":[" + list + "]}";
+    }
+
+
+
+    //Response of the "forecast/daily" endpoint, mForecastDays days starting today
+    private String buildForecastJson(long cityId) {
+
+        StringBuilder json = new StringBuilder("{\"city\":{\"id\":").append(cityId)
+                .append(",\"name\":\"").append(getCityName(cityId))
+                .append("\",\"coord\":{\"lon\":-0.13,\"lat\":51.51}},\"cod\":\"200\",\"message\":0.01")
+                .append(buildPadding()).append(",\"cnt\":")
+                .append(mForecastDays).append(",\"list\":[");
+        for (int day = 0; day < mForecastDays; day++) {
+            if (day > 0) {
+                json.append(',');
+            }
+            int weatherCode = day % 2 == 0 ? 800 : 500;
+            json.append("{\"dt\":").append(1476000000L + day * 86400L)
+                    .append(",\"temp\":{\"day\":15.5,\"min\":").append(8 + day % 5)
+                    .append(",\"max\":").append(18 + day % 5)
+                    .append(",\"night\":9.2,\"eve\":14.1,\"morn\":10.3},\"pressure\":1013.25,\"humidity\":")
+                    .append(60 + day)
+                    .append(",\"weather\":[").append(buildConditionJson(weatherCode))
+                    .append("],\"speed\":3.6,\"deg\":").append(180 + day)
+                    .append(",\"clouds\":").append(20 + day).append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+
+
+    //Response of the "onecall" endpoint without minutely, hourly and alerts, which sync excludes
+    private String buildOneCallJson(String lat, String lon) {
+
+        StringBuilder json = new StringBuilder("{\"lat\":").append(lat).append(",\"lon\":").append(lon)
+                .append(",\"timezone\":\"Europe/London\",\"timezone_offset\":3600")
+                .append(buildPadding())
+                .append(",\"current\":{\"dt\":1476000000,\"temp\":15.5,\"feels_like\":14.9,\"pressure\":1013,")
+                .append("\"humidity\":60,\"clouds\":40,\"wind_speed\":3.6,\"wind_deg\":180,\"weather\":[")
+                .append(buildConditionJson(800)).append("]},\"daily\":[");
+        for (int day = 0; day < mForecastDays; day++) {
+            if (day > 0) {
+                json.append(',');
+            }
+            int weatherCode = day % 2 == 0 ? 800 : 500;
+            json.append("{\"dt\":").append(1476000000L + day * 86400L)
+                    .append(",\"temp\":{\"day\":15.5,\"min\":").append(8 + day % 5)
+                    .append(",\"max\":").append(18 + day % 5)
+                    .append(",\"night\":9.2,\"eve\":14.1,\"morn\":10.3},\"pressure\":1013,\"humidity\":")
+                    .append(60 + day)
+                    .append(",\"wind_speed\":3.6,\"wind_deg\":").append(180 + day)
+                    .append(",\"clouds\":").append(20 + day)
+                    .append(",\"weather\":[").append(buildConditionJson(weatherCode)).append("]}");
+        }
+        return json.append("]}").toString();
+    }
+
+
+
+    //Fields of a city in "weather" and "group" responses
+    private String buildTodayFields(long cityId) {
+
+        return "\"coord\":{\"lon\":-0.13,\"lat\":51.51}," +
+                "\"weather\":[" + buildConditionJson(800) + "]," +
+                "\"base\":\"stations\"," +
+                "\"main\":{\"temp\":15.5,\"pressure\":1013,\"humidity\":60,\"temp_min\":10.2,\"temp_max\":20.8}," +
+                "\"wind\":{\"speed\":3.6,\"deg\":180}," +
+                "\"clouds\":{\"all\":40}," +
+                "\"dt\":1476000000," +
+                "\"id\":" + cityId + "," +
+                "\"name\":\"" + getCityName(cityId) + "\"";
+    }
+
+
+
+    //A field of mPaddingBytes bytes, with the comma in front of it, or nothing
+    private String buildPadding() {
+
+        int paddingBytes = mPaddingBytes;
+        if (paddingBytes <= 0) {
+            return "";
+        }
+        StringBuilder padding = new StringBuilder(paddingBytes + 16).append(",\"padding\":\"");
+        for (int i = 0; i < paddingBytes; i++) {
+            padding.append('x');
+        }
+        return padding.append('"').toString();
+    }
+
+
+
+    private static String buildConditionJson(int weatherCode) {
+
+        return weatherCode == 800 ?
+                "{\"id\":800,\"main\":\"Clear\",\"description\":\"clear sky\",\"icon\":\"01d\"}" :
+                "{\"id\":500,\"main\":\"Rain\",\"description\":\"light rain\",\"icon\":\"10d\"}";
+    }
+}
@@ -0,0 +1,38 @@
+package com.dilyar.weather.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of the high and low of every row of the forecast list into the unit the user picked.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TemperaturesBenchmark {
+
+    //Not final, so the conversion can't be folded into a constant
+    private double mCelsius = 18.64;
+
+
+
+    @Benchmark
+    public double toDisplayTemperatureMetric() {
+
+        return Temperatures.toDisplayTemperature(mCelsius, true);
+    }
+
+
+
+    @Benchmark
+    public double toDisplayTemperatureImperial() {
+
+        return Temperatures.toDisplayTemperature(mCelsius, false);
+    }
+}
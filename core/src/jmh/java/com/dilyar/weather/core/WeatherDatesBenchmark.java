@@ -0,0 +1,61 @@
+package com.dilyar.weather.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Date math every row of the forecast list and every saved forecast day goes through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WeatherDatesBenchmark {
+
+    private TimeZone mTimeZone;
+    private long mNow;
+    private long mDate;
+    private long mGmtoffSeconds;
+
+
+
+    @Setup
+    public void setUp() {
+
+        mTimeZone = TimeZone.getTimeZone("Europe/London");
+        mNow = 1476010800000L;
+        mDate = mNow + 3 * WeatherDates.DAY_IN_MILLIS;
+        mGmtoffSeconds = mTimeZone.getOffset(mNow) / 1000;
+    }
+
+
+
+    @Benchmark
+    public long getStartOfDay() {
+
+        return WeatherDates.getStartOfDay(mNow, 3, mTimeZone);
+    }
+
+
+
+    @Benchmark
+    public int getJulianDay() {
+
+        return WeatherDates.getJulianDay(mDate, mGmtoffSeconds);
+    }
+
+
+
+    @Benchmark
+    public int getDaysFromToday() {
+
+        return WeatherDates.getDaysFromToday(mDate, mNow, mTimeZone);
+    }
+}
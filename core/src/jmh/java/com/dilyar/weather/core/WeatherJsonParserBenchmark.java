@@ -0,0 +1,133 @@
+package com.dilyar.weather.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to parse one response of every OWM endpoint sync reads, the 14 day forecast above all,
+ * from bytes already in memory so only the parser is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WeatherJsonParserBenchmark {
+
+    private static final int FORECAST_DAYS = 14;
+    private static final int GROUP_CITIES = 20;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] mForecastJson;
+    private byte[] mTodayJson;
+    private byte[] mGroupJson;
+
+
+
+    @Setup
+    public void setUp() {
+
+        mForecastJson = buildForecastJson().getBytes(UTF_8);
+        mTodayJson = ("{" + buildTodayFields(2643743) + ",\"cod\":200}").getBytes(UTF_8);
+        StringBuilder group = new StringBuilder("{\"cnt\":").append(GROUP_CITIES).append(",\"list\":[");
+        for (int i = 0; i < GROUP_CITIES; i++) {
+            if (i > 0) {
+                group.append(',');
+            }
+            group.append('{').append(buildTodayFields(2643743 + i)).append('}');
+        }
+        mGroupJson = group.append("]}").toString().getBytes(UTF_8);
+    }
+
+
+
+    @Benchmark
+    public int parseForecast(final Blackhole blackhole) throws IOException {
+
+        return WeatherJsonParser.parseForecast(new ByteArrayInputStream(mForecastJson),
+                new WeatherJsonParser.ForecastDayHandler() {
+
+                    @Override
+                    public void onForecastDay(int dayIndex, WeatherJsonParser.ForecastDay day) {
+
+                        blackhole.consume(day.high);
+                        blackhole.consume(day.weatherId);
+                    }
+                });
+    }
+
+
+
+    @Benchmark
+    public WeatherJsonParser.TodayWeather parseTodayWeather() throws IOException {
+
+        WeatherJsonParser.TodayWeather today = new WeatherJsonParser.TodayWeather();
+        WeatherJsonParser.parseTodayWeather(new ByteArrayInputStream(mTodayJson), today);
+        return today;
+    }
+
+
+
+    @Benchmark
+    public int parseGroup(final Blackhole blackhole) throws IOException {
+
+        return WeatherJsonParser.parseGroup(new ByteArrayInputStream(mGroupJson),
+                new WeatherJsonParser.TodayWeatherHandler() {
+
+                    @Override
+                    public void onTodayWeather(WeatherJsonParser.TodayWeather today) {
+
+                        blackhole.consume(today);
+                    }
+                });
+    }
+
+
+
+    //A "forecast/daily" response of FORECAST_DAYS days, with every field OWM sends
+    private static String buildForecastJson() {
+
+        StringBuilder json = new StringBuilder("{\"city\":{\"id\":2643743,\"name\":\"London\"," +
+                "\"coord\":{\"lon\":-0.1258,\"lat\":51.5085},\"country\":\"GB\",\"population\":1000000}," +
+                "\"cod\":\"200\",\"message\":0.0213,\"cnt\":").append(FORECAST_DAYS).append(",\"list\":[");
+        for (int day = 0; day < FORECAST_DAYS; day++) {
+            if (day > 0) {
+                json.append(',');
+            }
+            json.append("{\"dt\":").append(1476010800L + day * 86400L)
+                    .append(",\"temp\":{\"day\":15.53,\"min\":").append(8.21 + day % 5)
+                    .append(",\"max\":").append(18.64 + day % 5)
+                    .append(",\"night\":9.17,\"eve\":14.08,\"morn\":10.32},\"pressure\":1013.25,\"humidity\":")
+                    .append(60 + day)
+                    .append(",\"weather\":[{\"id\":").append(day % 2 == 0 ? 800 : 500)
+                    .append(",\"main\":\"").append(day % 2 == 0 ? "Clear" : "Rain")
+                    .append("\",\"description\":\"").append(day % 2 == 0 ? "clear sky" : "light rain")
+                    .append("\",\"icon\":\"01d\"}],\"speed\":3.61,\"deg\":").append(180 + day)
+                    .append(",\"clouds\":").append(20 + day).append(",\"rain\":0.31}");
+        }
+        return json.append("]}").toString();
+    }
+
+
+
+    //Fields of a city in "weather" and "group" responses
+    private static String buildTodayFields(long cityId) {
+
+        return "\"coord\":{\"lon\":-0.13,\"lat\":51.51}," +
+                "\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"clear sky\",\"icon\":\"01d\"}]," +
+                "\"base\":\"stations\"," +
+                "\"main\":{\"temp\":15.5,\"pressure\":1013,\"humidity\":60,\"temp_min\":10.2,\"temp_max\":20.8}," +
+                "\"visibility\":10000,\"wind\":{\"speed\":3.6,\"deg\":180},\"clouds\":{\"all\":40}," +
+                "\"dt\":1476010800,\"sys\":{\"type\":1,\"id\":5091,\"country\":\"GB\"}," +
+                "\"id\":" + cityId + ",\"name\":\"London\"";
+    }
+}
@@ -0,0 +1,20 @@
+package com.dilyar.weather.core;
+
+/**
+ * Temperature conversion, OWM temperatures are requested and stored in Celsius.
+ */
+public class Temperatures {
+
+    public static double celsiusToFahrenheit(double celsius) {
+
+        return 9 * celsius / 5 + 32;
+    }
+
+
+
+    // Temperature in the unit the user picked
+    public static double toDisplayTemperature(double celsius, boolean isMetric) {
+
+        return isMetric ? celsius : celsiusToFahrenheit(celsius);
+    }
+}
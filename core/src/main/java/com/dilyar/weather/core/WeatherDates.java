@@ -0,0 +1,53 @@
+package com.dilyar.weather.core;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Date math of the weather database, without android.text.format.Time.
+ * Dates of the weather table are the local midnight of their day.
+ */
+public class WeatherDates {
+
+    public static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // Julian day of 1970-01-01, as used by android.text.format.Time
+    public static final int EPOCH_JULIAN_DAY = 2440588;
+
+
+
+    /**
+     * Local midnight of the day dayOffset days after the day of date.
+     */
+    public static long getStartOfDay(long date, int dayOffset, TimeZone timeZone) {
+
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(date);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.DAY_OF_MONTH, dayOffset);
+        return calendar.getTimeInMillis();
+    }
+
+
+
+    // Same result as Time.getJulianDay(millis, gmtoff)
+    public static int getJulianDay(long millis, long gmtoffSeconds) {
+
+        return (int) ((millis + gmtoffSeconds * 1000) / DAY_IN_MILLIS) + EPOCH_JULIAN_DAY;
+    }
+
+
+
+    /**
+     * Number of days from the day of now to the day of date, both taken with the offset timeZone has at now.
+     * 0 is today, 1 is tomorrow.
+     */
+    public static int getDaysFromToday(long date, long now, TimeZone timeZone) {
+
+        long gmtoffSeconds = timeZone.getOffset(now) / 1000;
+        return getJulianDay(date, gmtoffSeconds) - getJulianDay(now, gmtoffSeconds);
+    }
+}
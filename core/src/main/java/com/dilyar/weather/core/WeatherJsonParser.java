@@ -0,0 +1,542 @@
+package com.dilyar.weather.core;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.logging.Logger;
+
+/**
+ * Streaming parser of OWM responses. It reads the response stream of the connection directly,
+ * without building the whole body as a String or a JSONObject tree first,
+ * and hands every forecast day over as soon as it is read.
+ * Gson's JsonReader has the API of android.util.JsonReader, so the parser runs and is measured on a plain JVM.
+ */
+public class WeatherJsonParser {
+
+    private static final String LOG_TAG = WeatherJsonParser.class.getSimpleName();
+    //Shows up in logcat on Android
+    private static final Logger sLogger = Logger.getLogger(LOG_TAG);
+
+    //Status of the server a response stands for, SunshineSyncAdapter's status codes have the same values
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_SERVER_DOWN = 1;
+    public static final int STATUS_INVALID_CITY = 2;
+
+    //OWM API Parameters
+    private static final String OWM_MESSAGE_CODE = "cod";
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_WEATHER_ID = "id";
+    private static final String OWM_SHORT_DESC = "main";
+    private static final String OWM_LONG_DESC = "description";
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WIND_SPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+    private static final String OWM_CITY_ID = "id";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_CLOUDINESS = "clouds";
+    private static final String OWM_COORD = "coord";
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+    private static final String OWM_TEMPERATURE = "temp";
+
+    //Today exclusive
+    private static final String OWM_TODAY_MAIN = "main";
+    private static final String OWM_TODAY_MAX = "temp_max";
+    private static final String OWM_TODAY_MIN = "temp_min";
+    private static final String OWM_TODAY_CLOUDINESS = "all";
+
+    //Future exclusive
+    private static final String OWM_LIST = "list";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    //Parts a "weather" response object needs to be saved
+    private static final int TODAY_FIELD_CITY = 1;
+    private static final int TODAY_FIELD_WEATHER = 1 << 1;
+    private static final int TODAY_FIELD_MAIN = 1 << 2;
+    private static final int TODAY_FIELDS_COMPLETE = TODAY_FIELD_CITY | TODAY_FIELD_WEATHER | TODAY_FIELD_MAIN;
+
+    //One call exclusive
+    private static final String OWM_CURRENT = "current";
+    private static final String OWM_DAILY = "daily";
+    private static final String OWM_ONE_CALL_WIND_SPEED = "wind_speed";
+    private static final String OWM_ONE_CALL_WIND_DIRECTION = "wind_deg";
+
+    /**
+     * Today weather of a city, as returned by the "weather" endpoint.
+     */
+    public static class TodayWeather {
+        public long cityId;
+        public String cityName;
+        public double lat;
+        public double lon;
+        public int weatherId;
+        public String shortDesc;
+        public String longDesc;
+        public double temp;
+        public double max;
+        public double min;
+        public int humidity;
+        public double pressure;
+        public int cloudiness;
+    }
+
+    /**
+     * One day of the "forecast/daily" endpoint. The same instance is reused for every day of a response,
+     * so handlers must copy what they need.
+     */
+    public static class ForecastDay {
+        public double pressure;
+        public int humidity;
+        public int cloudiness;
+        public double windSpeed;
+        public double windDirection;
+        public double high;
+        public double low;
+        public String shortDesc;
+        public String longDesc;
+        public int weatherId;
+    }
+
+    public interface ForecastDayHandler {
+        void onForecastDay(int dayIndex, ForecastDay day);
+    }
+
+    public interface TodayWeatherHandler {
+        void onTodayWeather(TodayWeather today);
+    }
+
+
+
+    /**
+     * Parse the response of the "weather" endpoint into today.
+     *
+     * @return the status of the server, taken from the "cod" of the response.
+     * @throws IOException if the stream cannot be read.
+     */
+    public static int parseTodayWeather(InputStream inputStream, TodayWeather today) throws IOException {
+
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+        int responseCode = HttpURLConnection.HTTP_OK;
+        int todayFields = 0;
+
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(OWM_MESSAGE_CODE)) {
+                    responseCode = reader.nextInt();
+                } else {
+                    todayFields |= readTodayField(reader, name, today);
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            sLogger.severe("parseTodayWeather() failed: " + e.getMessage());
+            return responseCode == HttpURLConnection.HTTP_OK ? STATUS_INVALID_CITY : getStatus(responseCode);
+        } finally {
+            reader.close();
+        }
+
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            return getStatus(responseCode);
+        }
+        return todayFields == TODAY_FIELDS_COMPLETE ? STATUS_OK : STATUS_INVALID_CITY;
+    }
+
+
+
+    /**
+     * Parse the response of the "forecast/daily" endpoint, every day is handed to handler as soon as it is read.
+     *
+     * @return the status of the server, taken from the "cod" of the response.
+     * @throws IOException if the stream cannot be read.
+     */
+    public static int parseForecast(InputStream inputStream, ForecastDayHandler handler) throws IOException {
+
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+        int responseCode = HttpURLConnection.HTTP_OK;
+        boolean hasList = false;
+
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(OWM_MESSAGE_CODE)) {
+                    responseCode = reader.nextInt();
+                } else if (name.equals(OWM_LIST) && responseCode == HttpURLConnection.HTTP_OK) {
+                    ForecastDay day = new ForecastDay();
+                    int dayIndex = 0;
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (readForecastDay(reader, day)) {
+                            handler.onForecastDay(dayIndex, day);
+                        } else {
+                            sLogger.warning("Forecast day " + dayIndex + " has no description, it is not saved");
+                        }
+                        dayIndex++;
+                    }
+                    reader.endArray();
+                    hasList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            sLogger.severe("parseForecast() failed: " + e.getMessage());
+            return responseCode == HttpURLConnection.HTTP_OK ? STATUS_INVALID_CITY : getStatus(responseCode);
+        } finally {
+            reader.close();
+        }
+
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            return getStatus(responseCode);
+        }
+        return hasList ? STATUS_OK : STATUS_INVALID_CITY;
+    }
+
+
+
+    /**
+     * Parse the response of the "group" endpoint, the today weather of every city in its "list" is handed
+     * to handler as soon as it is read. Incomplete cities are left out.
+     *
+     * @return the status of the server, taken from the "cod" of the response.
+     * @throws IOException if the stream cannot be read.
+     */
+    public static int parseGroup(InputStream inputStream, TodayWeatherHandler handler) throws IOException {
+
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+        int responseCode = HttpURLConnection.HTTP_OK;
+        boolean hasList = false;
+
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(OWM_MESSAGE_CODE)) {
+                    responseCode = reader.nextInt();
+                } else if (name.equals(OWM_LIST) && responseCode == HttpURLConnection.HTTP_OK) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        TodayWeather today = new TodayWeather();
+                        int todayFields = 0;
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            todayFields |= readTodayField(reader, reader.nextName(), today);
+                        }
+                        reader.endObject();
+                        if (todayFields == TODAY_FIELDS_COMPLETE && today.cityId != 0) {
+                            handler.onTodayWeather(today);
+                        }
+                    }
+                    reader.endArray();
+                    hasList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            sLogger.severe("parseGroup() failed: " + e.getMessage());
+            return responseCode == HttpURLConnection.HTTP_OK ? STATUS_INVALID_CITY : getStatus(responseCode);
+        } finally {
+            reader.close();
+        }
+
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            return getStatus(responseCode);
+        }
+        return hasList ? STATUS_OK : STATUS_INVALID_CITY;
+    }
+
+
+
+    /**
+     * Parse the response of the "onecall" endpoint. Current weather goes into today, together with
+     * the high and low of the first daily entry, and every daily entry is handed to handler as soon as it is read.
+     * The endpoint is coordinate based, so the city name of today is left untouched.
+     *
+     * @return the status of the server, taken from the "cod" of the response.
+     * @throws IOException if the stream cannot be read.
+     */
+    public static int parseOneCall(InputStream inputStream, TodayWeather today, ForecastDayHandler handler) throws IOException {
+
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+        int responseCode = HttpURLConnection.HTTP_OK;
+        boolean hasCurrent = false;
+        boolean hasDaily = false;
+
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(OWM_MESSAGE_CODE)) {
+                    responseCode = reader.nextInt();
+                } else if (name.equals(OWM_LATITUDE)) {
+                    today.lat = reader.nextDouble();
+                } else if (name.equals(OWM_LONGITUDE)) {
+                    today.lon = reader.nextDouble();
+                } else if (name.equals(OWM_CURRENT)) {
+                    hasCurrent = readCurrent(reader, today);
+                } else if (name.equals(OWM_DAILY)) {
+                    ForecastDay day = new ForecastDay();
+                    int dayIndex = 0;
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        boolean hasCondition = readForecastDay(reader, day);
+                        if (dayIndex == 0) {
+                            today.max = day.high;
+                            today.min = day.low;
+                        }
+                        if (hasCondition) {
+                            handler.onForecastDay(dayIndex, day);
+                        } else {
+                            sLogger.warning("Daily entry " + dayIndex + " has no description, it is not saved");
+                        }
+                        dayIndex++;
+                    }
+                    reader.endArray();
+                    hasDaily = dayIndex > 0;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            sLogger.severe("parseOneCall() failed: " + e.getMessage());
+            return responseCode == HttpURLConnection.HTTP_OK ? STATUS_INVALID_CITY : getStatus(responseCode);
+        } finally {
+            reader.close();
+        }
+
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            return getStatus(responseCode);
+        }
+        return hasCurrent && hasDaily ? STATUS_OK : STATUS_INVALID_CITY;
+    }
+
+
+
+    /**
+     * Map the "cod" OWM puts into its responses to the status of the server.
+     */
+    public static int getStatus(int responseCode) {
+
+        switch (responseCode) {
+            case HttpURLConnection.HTTP_OK:
+                return STATUS_OK;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                return STATUS_INVALID_CITY;
+            default:
+                return STATUS_SERVER_DOWN;
+        }
+    }
+
+
+
+    //Read one day of a forecast into day. Returns false if it has no condition to describe it,
+    //a day is only saved together with the descriptions of its weather code.
+    private static boolean readForecastDay(JsonReader reader, ForecastDay day) throws IOException {
+
+        boolean hasCondition = false;
+        day.pressure = 0;
+        day.humidity = 0;
+        day.cloudiness = 0;
+        day.windSpeed = 0;
+        day.windDirection = 0;
+        day.high = 0;
+        day.low = 0;
+        day.shortDesc = null;
+        day.longDesc = null;
+        day.weatherId = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(OWM_PRESSURE)) {
+                day.pressure = reader.nextDouble();
+            } else if (name.equals(OWM_HUMIDITY)) {
+                day.humidity = (int) reader.nextDouble();
+            } else if (name.equals(OWM_WIND_SPEED) || name.equals(OWM_ONE_CALL_WIND_SPEED)) {
+                day.windSpeed = reader.nextDouble();
+            } else if (name.equals(OWM_WIND_DIRECTION) || name.equals(OWM_ONE_CALL_WIND_DIRECTION)) {
+                day.windDirection = reader.nextDouble();
+            } else if (name.equals(OWM_CLOUDINESS)) {
+                day.cloudiness = (int) reader.nextDouble();
+            } else if (name.equals(OWM_WEATHER)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                hasCondition = readFirstCondition(reader, null, day);
+            } else if (name.equals(OWM_TEMPERATURE)) {
+                // Temperatures are in a child object called "temp".  Try not to name variables
+                // "temp" when working with temperature.  It confuses everybody.
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String temperatureName = reader.nextName();
+                    if (temperatureName.equals(OWM_MAX)) {
+                        day.high = reader.nextDouble();
+                    } else if (temperatureName.equals(OWM_MIN)) {
+                        day.low = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return hasCondition;
+    }
+
+
+
+    //Read one field of a "weather" response object into today, unknown fields are skipped.
+    //Returns which of the required parts of today the field completed.
+    private static int readTodayField(JsonReader reader, String name, TodayWeather today) throws IOException {
+
+        if (name.equals(OWM_CITY_ID)) {
+            today.cityId = reader.nextLong();
+        } else if (name.equals(OWM_CITY_NAME)) {
+            today.cityName = reader.nextString();
+            return TODAY_FIELD_CITY;
+        } else if (name.equals(OWM_COORD)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String coordName = reader.nextName();
+                if (coordName.equals(OWM_LATITUDE)) {
+                    today.lat = reader.nextDouble();
+                } else if (coordName.equals(OWM_LONGITUDE)) {
+                    today.lon = reader.nextDouble();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } else if (name.equals(OWM_WEATHER)) {
+            return readFirstCondition(reader, today, null) ? TODAY_FIELD_WEATHER : 0;
+        } else if (name.equals(OWM_TODAY_MAIN)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String mainName = reader.nextName();
+                if (mainName.equals(OWM_TEMPERATURE)) {
+                    today.temp = reader.nextDouble();
+                } else if (mainName.equals(OWM_TODAY_MAX)) {
+                    today.max = reader.nextDouble();
+                } else if (mainName.equals(OWM_TODAY_MIN)) {
+                    today.min = reader.nextDouble();
+                } else if (mainName.equals(OWM_HUMIDITY)) {
+                    today.humidity = (int) reader.nextDouble();
+                } else if (mainName.equals(OWM_PRESSURE)) {
+                    today.pressure = reader.nextDouble();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return TODAY_FIELD_MAIN;
+        } else if (name.equals(OWM_CLOUDINESS)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals(OWM_TODAY_CLOUDINESS)) {
+                    today.cloudiness = (int) reader.nextDouble();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } else {
+            reader.skipValue();
+        }
+        return 0;
+    }
+
+
+
+    //Read the "current" object of a one call response into today.
+    private static boolean readCurrent(JsonReader reader, TodayWeather today) throws IOException {
+
+        boolean hasWeather = false;
+        boolean hasTemperature = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(OWM_TEMPERATURE)) {
+                today.temp = reader.nextDouble();
+                hasTemperature = true;
+            } else if (name.equals(OWM_PRESSURE)) {
+                today.pressure = reader.nextDouble();
+            } else if (name.equals(OWM_HUMIDITY)) {
+                today.humidity = (int) reader.nextDouble();
+            } else if (name.equals(OWM_CLOUDINESS)) {
+                today.cloudiness = (int) reader.nextDouble();
+            } else if (name.equals(OWM_WEATHER)) {
+                hasWeather = readFirstCondition(reader, today, null);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return hasWeather && hasTemperature;
+    }
+
+
+
+    //Read the first element of a "weather" array into either today or day, skip the rest.
+    //Returns false if the element has no description at all. If it has only one, it stands in for the other.
+    private static boolean readFirstCondition(JsonReader reader, TodayWeather today, ForecastDay day) throws IOException {
+
+        boolean hasCondition = false;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (hasCondition || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            int weatherId = 0;
+            String shortDesc = null;
+            String longDesc = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(OWM_WEATHER_ID)) {
+                    weatherId = reader.nextInt();
+                } else if (name.equals(OWM_SHORT_DESC)) {
+                    shortDesc = reader.nextString();
+                } else if (name.equals(OWM_LONG_DESC)) {
+                    longDesc = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (shortDesc == null) {
+                shortDesc = longDesc;
+            } else if (longDesc == null) {
+                longDesc = shortDesc;
+            }
+            if (today != null) {
+                today.weatherId = weatherId;
+                today.shortDesc = shortDesc;
+                today.longDesc = longDesc;
+            } else {
+                day.weatherId = weatherId;
+                day.shortDesc = shortDesc;
+                day.longDesc = longDesc;
+            }
+            hasCondition = shortDesc != null;
+        }
+        reader.endArray();
+        return hasCondition;
+    }
+}